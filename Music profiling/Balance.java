@@ -1,12 +1,34 @@
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 
 public class Balance implements BalancerIf {
+    /* an unchanged load is still reported after this long, whatever server.reportMillis is,
+       so the reports stay well inside the proxy's server timeout */
+    static final long HEARTBEAT_MILLIS = 1000;
+
+    // one thread pushes the reports of every server in the JVM
+    private static final ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "load-reporter");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     Server s;
     int port;
 
+    private BalancerIf stub;
+    private volatile LoadListener proxy;
+    private LoadReport lastReport;
+    private long lastReportNanos;
+    private String lastError;
+
     Balance(Server serverObj, int p) {
         this.s = serverObj;
         this.port = p;
@@ -14,7 +36,7 @@ public class Balance implements BalancerIf {
 
     void init() {
         try {
-            BalancerIf stub = (BalancerIf) UnicastRemoteObject.exportObject(this, port);
+            stub = (BalancerIf) UnicastRemoteObject.exportObject(this, port);
             Registry registry = LocateRegistry.getRegistry();
             String name = "b" + port;
             registry.bind("b" + port, stub);
@@ -23,14 +45,84 @@ public class Balance implements BalancerIf {
             System.err.println("Balance exception: " + e);
             e.printStackTrace();
         }
+        long interval = s.getConfig().reportMillis;
+        if (Math.max(interval, HEARTBEAT_MILLIS) * 2 > Proxy.SERVER_TIMEOUT_MILLIS) {
+            System.err.println("Balance: reports every " + Math.max(interval, HEARTBEAT_MILLIS)
+                    + " ms may not reach the proxy within its server timeout of " + Proxy.SERVER_TIMEOUT_MILLIS
+                    + " ms, lower -Dserver.reportMillis or raise -Dproxy.serverTimeoutMillis");
+        }
+        reporter.scheduleWithFixedDelay(this::report, 0, interval, TimeUnit.MILLISECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::deregister));
+    }
+
+    /**
+     * Pushes the load of the server to the proxy if it changed since the
+     * last report, or if the last report was HEARTBEAT_MILLIS ago, so
+     * the reports double as heartbeats.
+     * Until the proxy is up, every interval tries to look it up and
+     * register with it. If the proxy does not know the server any more,
+     * it registers again. If the proxy refuses the server, e.g. because
+     * its zone is unknown, the reason is logged and it keeps trying, as
+     * a scheduled task that throws is never run again.
+     */
+    private void report() {
+        LoadReport report = s.getLoadReport();
+        if (report.sameLoad(lastReport)
+                && System.nanoTime() - lastReportNanos < TimeUnit.MILLISECONDS.toNanos(HEARTBEAT_MILLIS)) {
+            return;
+        }
+        try {
+            if (proxy == null) {
+                LoadListener found = (LoadListener) LocateRegistry.getRegistry().lookup("Proxy");
+                found.register(s.getConnectInfo(), stub);
+                proxy = found;
+            }
+            if (!proxy.reportLoad(report)) {
+                proxy.register(s.getConnectInfo(), stub);
+                proxy.reportLoad(report);
+            }
+            lastReport = report;
+            lastReportNanos = System.nanoTime();
+            lastError = null;
+        } catch (RemoteException | NotBoundException e) {
+            // the proxy is not up yet, or was restarted
+            proxy = null;
+        } catch (RuntimeException e) {
+            proxy = null;
+            if (!e.toString().equals(lastError)) {
+                System.err.println("Balance: b" + port + " could not report to the proxy: " + e);
+                lastError = e.toString();
+            }
+        }
+    }
+
+    /**
+     * Tells the proxy the server is going away, so no more
+     * clients are sent to it
+     */
+    private void deregister() {
+        LoadListener current = proxy;
+        if (current != null) {
+            try {
+                current.deregister(s.getConnectInfo().address);
+            } catch (RemoteException e) {
+                // the proxy removes the server once its reports stop
+            }
+        }
     }
 
     /**
      * Send info to proxy server about the amount
-     * of work in the queue.
+     * of work in the queue, or the jobs in flight
+     * for a server running on virtual threads.
      */
     @Override
     public int getLoad() {
         return s.getSize();
     }
+
+    @Override
+    public ServerStats getStats() {
+        return s.getMetrics().snapshot();
+    }
 }
\ No newline at end of file
@@ -5,4 +5,9 @@ public interface BalancerIf extends Remote {
 
     int getLoad() throws RemoteException, InterruptedException;
 
+    /**
+     * @return the request counts, cache hit ratios, queue depth and other metrics of the server
+     */
+    ServerStats getStats() throws RemoteException;
+
 }
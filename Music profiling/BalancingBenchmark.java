@@ -0,0 +1,123 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Replays the zones of a query file against a simulation of the five
+ * servers, once for each balancing strategy.
+ *
+ * Usage
+ * > java BalancingBenchmark [file] [ms between queries] [service times]
+ * e.g.
+ * > java BalancingBenchmark cachedQueries.txt 15 80,80,160,80,80
+ *
+ * A query arrives every few ms, in file order. Each server runs one job
+ * at a time in arrival order, and takes its service time per job; a
+ * query sent to another zone takes the cross zone penalty on top. The
+ * strategies see the exact load and service time of every server, as
+ * if the servers reported them continuously. No RMI is involved, so the
+ * numbers only compare the policies.
+ */
+public class BalancingBenchmark {
+    private static final String[] STRATEGIES = {"threshold", "leastOutstanding", "powerOfTwo", "zoneAffine"};
+
+    public static void main(String[] args) throws IOException {
+        String filename = args.length > 0 ? args[0] : "cachedQueries.txt";
+        double interArrival = args.length > 1 ? Double.parseDouble(args[1]) : 15;
+        long[] serviceTimes = new long[] {80, 80, 80, 80, 80};
+        if (args.length > 2) {
+            serviceTimes = Arrays.stream(args[2].split(",")).mapToLong(Long::parseLong).toArray();
+        }
+
+        int[] zones = readZones(filename);
+        System.out.printf("%d queries, one every %.1f ms, service times %s ms%n",
+                zones.length, interArrival, Arrays.toString(serviceTimes));
+        System.out.printf("%-18s %10s %10s %10s %10s %12s%n",
+                "strategy", "mean ms", "p50 ms", "p99 ms", "max ms", "cross zone");
+        for (String name : STRATEGIES) {
+            double[] turnaround = new double[zones.length];
+            int crossZone = replay(BalancingStrategy.create(name), zones, interArrival, serviceTimes, turnaround);
+            Arrays.sort(turnaround);
+            System.out.printf("%-18s %10.1f %10.1f %10.1f %10.1f %11.1f%%%n", name,
+                    Arrays.stream(turnaround).average().orElse(0),
+                    percentile(turnaround, 0.50), percentile(turnaround, 0.99),
+                    turnaround[turnaround.length - 1], 100.0 * crossZone / zones.length);
+        }
+    }
+
+    /**
+     * @param turnaround filled in with the turnaround of each query, in ms
+     * @return the number of queries sent to another zone
+     */
+    private static int replay(BalancingStrategy strategy, int[] zones, double interArrival,
+                              long[] serviceTimes, double[] turnaround) {
+        int servers = serviceTimes.length;
+        long[] serviceTimeNanos = new long[servers];
+        for (int i = 0; i < servers; i++) {
+            serviceTimeNanos[i] = serviceTimes[i] * 1000000;
+        }
+        // finish times of the jobs each server has, in order
+        ArrayList<ArrayDeque<Double>> jobs = new ArrayList<>();
+        for (int i = 0; i < servers; i++) {
+            jobs.add(new ArrayDeque<>());
+        }
+        int[] load = new int[servers];
+        int crossZone = 0;
+
+        for (int q = 0; q < zones.length; q++) {
+            double now = q * interArrival;
+            for (int i = 0; i < servers; i++) {
+                ArrayDeque<Double> queue = jobs.get(i);
+                while (!queue.isEmpty() && queue.peek() <= now) {
+                    queue.poll();
+                }
+                load[i] = queue.size();
+            }
+
+            // one server per zone, so the candidates are the zone and its two neighbours
+            int zone = Math.floorMod(zones[q] - 1, servers);
+            int[] candidates = {zone, Math.floorMod(zone - 1, servers), Math.floorMod(zone + 1, servers)};
+            int[] candidateLoad = new int[3];
+            long[] candidateServiceTime = new long[3];
+            for (int c = 0; c < 3; c++) {
+                candidateLoad[c] = load[candidates[c]];
+                candidateServiceTime[c] = serviceTimeNanos[candidates[c]];
+            }
+            int server = candidates[strategy.choose(candidateLoad, candidateServiceTime, 1)];
+            double arrival = now;
+            if (server != zone) {
+                arrival += BalancingStrategy.CROSS_ZONE_PENALTY_NANOS / 1000000.0;
+                crossZone++;
+            }
+            ArrayDeque<Double> queue = jobs.get(server);
+            double start = queue.isEmpty() ? arrival : Math.max(arrival, queue.peekLast());
+            double finish = start + serviceTimes[server];
+            queue.add(finish);
+            turnaround[q] = finish - now;
+        }
+        return crossZone;
+    }
+
+    private static double percentile(double[] sorted, double p) {
+        return sorted[(int) Math.min(sorted.length - 1, Math.floor(p * sorted.length))];
+    }
+
+    /**
+     * @return the zone of each query in the file
+     */
+    private static int[] readZones(String filename) throws IOException {
+        ArrayList<Integer> zones = new ArrayList<>();
+        try (BufferedReader br = new BufferedReader(new FileReader(filename))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    zones.add(Integer.parseInt(line.substring(line.length() -1)));
+                }
+            }
+        }
+        return zones.stream().mapToInt(Integer::intValue).toArray();
+    }
+}
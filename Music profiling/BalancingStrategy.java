@@ -0,0 +1,149 @@
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Picks the server for a query from the servers in the client's own
+ * zone and in its two neighbouring zones, the servers the proxy is
+ * allowed to use. A zone can have any number of servers.
+ *
+ * Use
+ * > java -Dproxy.strategy=leastOutstanding Proxy
+ * to pick another strategy than the original threshold policy, and
+ * "java BalancingBenchmark" to compare them.
+ */
+interface BalancingStrategy {
+    /* the delay the proxy adds for a server in another zone */
+    long CROSS_ZONE_PENALTY_NANOS = TimeUnit.MILLISECONDS.toNanos(Proxy.CROSS_ZONE_DELAY_MILLIS);
+    /* the service time assumed for a server that has not reported one yet */
+    long DEFAULT_SERVICE_TIME_NANOS = 80_000_000L;
+
+    /**
+     * The candidates are given as parallel arrays. The first local
+     * candidates are in the client's zone, the rest in a neighbouring zone.
+     * @param load the jobs each candidate has, waiting or running
+     * @param serviceTimeNanos the average job run time of each candidate, 0 if unknown
+     * @param local the number of candidates in the client's zone
+     * @return index of the candidate to assign
+     */
+    int choose(int[] load, long[] serviceTimeNanos, int local);
+
+    /**
+     * @param name "threshold", "leastOutstanding", "powerOfTwo" or "zoneAffine"
+     */
+    static BalancingStrategy create(String name) {
+        switch (name) {
+            case "threshold" :
+                return new Threshold(Proxy.MAX_LOAD);
+            case "leastOutstanding" :
+                return new LeastOutstanding();
+            case "powerOfTwo" :
+                return new PowerOfTwo(new Random());
+            case "zoneAffine" :
+                return new ZoneAffine();
+            default :
+                throw new IllegalArgumentException("Unknown balancing strategy " + name);
+        }
+    }
+
+    /**
+     * @return the least loaded candidate in [from, to), the first one on a tie, or -1 if the range is empty
+     */
+    static int leastLoaded(int[] load, int from, int to) {
+        int best = -1;
+        for (int i = from; i < to; i++) {
+            if (best == -1 || load[i] < load[best]) {
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * The original policy: the own zone while it has less than maxLoad
+     * jobs, else the less loaded neighbour with less than maxLoad jobs,
+     * else the own zone anyway. Within a zone, the least loaded server.
+     */
+    class Threshold implements BalancingStrategy {
+        private final int maxLoad;
+
+        Threshold(int maxLoad) {
+            this.maxLoad = maxLoad;
+        }
+
+        @Override
+        public int choose(int[] load, long[] serviceTimeNanos, int local) {
+            int own = leastLoaded(load, 0, local);
+            if (own != -1 && load[own] < maxLoad) {
+                return own;
+            }
+            int neighbour = leastLoaded(load, local, load.length);
+            if (neighbour != -1 && load[neighbour] < maxLoad) {
+                return neighbour;
+            }
+            return own != -1 ? own : neighbour;
+        }
+    }
+
+    /**
+     * The server with the fewest jobs, the own zone on a tie.
+     */
+    class LeastOutstanding implements BalancingStrategy {
+        @Override
+        public int choose(int[] load, long[] serviceTimeNanos, int local) {
+            // the own zone comes first, so it wins a tie
+            return leastLoaded(load, 0, load.length);
+        }
+    }
+
+    /**
+     * The less loaded of two candidates, picked at random.
+     * Unlike least outstanding, clients that decide on the same stale
+     * load numbers do not all pile onto the same server.
+     */
+    class PowerOfTwo implements BalancingStrategy {
+        private final Random random;
+
+        PowerOfTwo(Random random) {
+            this.random = random;
+        }
+
+        @Override
+        public int choose(int[] load, long[] serviceTimeNanos, int local) {
+            if (load.length == 1) {
+                return 0;
+            }
+            int a = random.nextInt(load.length);
+            int b = (a + 1 + random.nextInt(load.length - 1)) % load.length;
+            int first = Math.min(a, b);
+            int second = Math.max(a, b);
+            // the own zone comes first, so it wins a tie
+            return load[second] < load[first] ? second : first;
+        }
+    }
+
+    /**
+     * The server with the lowest expected turnaround: the jobs ahead of
+     * the query and the query itself, at the server's measured service
+     * time, plus the cross zone penalty for another zone.
+     */
+    class ZoneAffine implements BalancingStrategy {
+        @Override
+        public int choose(int[] load, long[] serviceTimeNanos, int local) {
+            int best = 0;
+            long bestScore = score(0, load, serviceTimeNanos, local);
+            for (int i = 1; i < load.length; i++) {
+                long score = score(i, load, serviceTimeNanos, local);
+                if (score < bestScore) {
+                    best = i;
+                    bestScore = score;
+                }
+            }
+            return best;
+        }
+
+        private static long score(int i, int[] load, long[] serviceTimeNanos, int local) {
+            long serviceTime = serviceTimeNanos[i] > 0 ? serviceTimeNanos[i] : DEFAULT_SERVICE_TIME_NANOS;
+            return (load[i] + 1) * serviceTime + (i < local ? 0 : CROSS_ZONE_PENALTY_NANOS);
+        }
+    }
+}
@@ -1,9 +1,5 @@
-import java.io.BufferedReader;
-import java.io.FileReader;
-import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.TimeUnit;
-import java.util.stream.Stream;
 import java.util.concurrent.*;
 
 class CachedServerJob<T> implements Callable<T> {
@@ -11,6 +7,7 @@ class CachedServerJob<T> implements Callable<T> {
     String arg1, arg2;
     long executionTimeStart, waitingTimeStart; //TODO: set start time for waitingTimeStart where appropriate
     Server server;
+    List<Query> batch;
 
     /**
      * Constructor
@@ -53,9 +50,19 @@ class CachedServerJob<T> implements Callable<T> {
         }
     }
 
+    /**
+     * Factory for batch jobs (type = 5), which answer several queries at once
+     * T should be declared to be List<Payload>
+     */
+    static <T> CachedServerJob<T> createBatchJob(List<Query> queries, Server serv, long ws) {
+        CachedServerJob<T> job = new CachedServerJob<>(5, null, null, serv, ws);
+        job.batch = queries;
+        return job;
+    }
+
     @Override
     public T call() throws InterruptedException {
-        Payload result = null;
+        Object result = null;
         /* select the correct job, and dispatch */
         switch (type) {
             case 1 :
@@ -70,6 +77,9 @@ class CachedServerJob<T> implements Callable<T> {
             case 4 :
                 result = getTopArtistsByUserGenre(arg1, arg2);
                 break;
+            case 5 :
+                result = runBatch(batch);
+                break;
             default :
                 System.err.println("What?");
         }
@@ -94,15 +104,12 @@ class CachedServerJob<T> implements Callable<T> {
             resetTimers();
             return payload;
         } else {
-            ArrayList<String> list = readDataset();
-            int totalTimesPlayed = 0;
-            for (String s : list) {
-                if (s.contains(musicID)) {
-                    String[] line = s.split(",");
-                    totalTimesPlayed += Integer.parseInt(line[line.length - 1].trim());
-                }
-            }
-            server.musicCache.put(musicID ,new MusicProfile(musicID, null, 0, totalTimesPlayed, null));
+            // concurrent misses for the same song share one lookup and cache fill
+            int totalTimesPlayed = server.inFlightCounts.execute("getTimesPlayed(" + musicID + ")", () -> {
+                int total = server.engine.getTimesPlayed(musicID);
+                server.musicCache.put(musicID ,new MusicProfile(musicID, null, 0, total, null));
+                return total;
+            });
             Payload payload = new Payload(totalTimesPlayed,
                     null,
                     System.nanoTime() - executionTimeStart,
@@ -122,9 +129,11 @@ class CachedServerJob<T> implements Callable<T> {
     private Payload getTimesPlayedByUser(String musicID, String userID) throws InterruptedException {
         executionTimeStart = System.nanoTime();
         TimeUnit.MILLISECONDS.sleep(80);
-        UserProfile userProfile = server.userCache.get(userID);
+        // a hit only if the profile holds this song
+        UserProfile userProfile = server.userCache.peek(userID);
+        MusicProfile musicProfile = userProfile == null ? null : userProfile.getMusicProfile(musicID);
+        server.userCache.recordLookup(musicProfile != null);
         if(userProfile != null) {
-            MusicProfile musicProfile = userProfile.getMusicProfile(musicID);
             if (musicProfile != null) {
                 Payload payload = new Payload(musicProfile.getTimesPlayed(),
                         null,
@@ -134,32 +143,25 @@ class CachedServerJob<T> implements Callable<T> {
                 return payload;
             }
         }
-        ArrayList<String> list = readDataset();
-        for (String s : list) {
-            if (s.contains(musicID) && s.contains(userID)) {
-                String[] line = s.split(",");
-                MusicProfile newMusicProfile = new MusicProfile(musicID, null, Integer.parseInt(line[line.length - 1].trim()), 0, null);
-                if(userProfile != null) {
-                    userProfile.addMusicProfile(newMusicProfile);
-                    server.userCache.put(userID, userProfile);
-                } else {
-                    UserProfile newUserProfile = new UserProfile(userID, null);
-                    newUserProfile.addMusicProfile(newMusicProfile);
-                    server.userCache.put(userID, newUserProfile);
-                }
-                Payload payload = new Payload(newMusicProfile.getTimesPlayed(),
-                        null,
-                        System.nanoTime() - executionTimeStart,
-                        executionTimeStart - waitingTimeStart);
-                resetTimers();
-                return payload;
+        int timesPlayed = server.inFlightCounts.execute("getTimesPlayedByUser(" + musicID + "," + userID + ")", () -> {
+            MusicProfile newMusicProfile = new MusicProfile(musicID, null,
+                    server.engine.getTimesPlayedByUser(musicID, userID), 0, null);
+            if(userProfile != null) {
+                userProfile.addMusicProfile(newMusicProfile);
+                server.userCache.put(userID, userProfile);
+            } else {
+                UserProfile newUserProfile = new UserProfile(userID, null);
+                newUserProfile.addMusicProfile(newMusicProfile);
+                server.userCache.put(userID, newUserProfile);
             }
-        }
-        System.out.println("  [ WARNING: Returning empty payload ]");
-        return new Payload(0,
+            return newMusicProfile.getTimesPlayed();
+        });
+        Payload payload = new Payload(timesPlayed,
                 null,
                 System.nanoTime() - executionTimeStart,
                 executionTimeStart - waitingTimeStart);
+        resetTimers();
+        return payload;
     }
 
 
@@ -171,7 +173,8 @@ class CachedServerJob<T> implements Callable<T> {
     private Payload getTopThreeMusicByUser(String userID) throws InterruptedException {
         executionTimeStart = System.nanoTime();
         TimeUnit.MILLISECONDS.sleep(80);
-        UserProfile userProfile = server.userCache.get(userID);
+        UserProfile userProfile = server.userCache.peek(userID);
+        server.userCache.recordLookup(userProfile != null && userProfile.getTopThreeMusicProfiles() != null);
         if(userProfile != null) {
             if(userProfile.getTopThreeMusicProfiles() != null) {
                 Payload payload = new Payload(0,
@@ -182,29 +185,17 @@ class CachedServerJob<T> implements Callable<T> {
                 return payload;
             }
         }
-        ArrayList<String> list = readDataset();
-        HashMap<String, Integer> map = new HashMap<>();
-        ArrayList<String> topThreeList = new ArrayList<>();
-        for (String s : list) {
-            if (s.contains(userID)) {
-                String[] line = s.split(",");
-                String musicId = line[0];
-                Integer numberOfTimesPlayed = Integer.parseInt(line[line.length - 1].trim());
-                map.put(musicId, numberOfTimesPlayed);
+        ArrayList<String> topThreeList = server.inFlightLists.execute("getTopThreeMusicByUser(" + userID + ")", () -> {
+            ArrayList<String> top = server.engine.getTopMusicByUser(userID, Dataset.TOP_K);
+            if(userProfile != null) {
+                userProfile.setTopThreeMusicProfiles(top);
+                server.userCache.put(userID, userProfile);
+            } else {
+                UserProfile newUserProfile = new UserProfile(userID, top);
+                server.userCache.put(userID, newUserProfile);
             }
-        }
-        Stream<Map.Entry<String, Integer>> topEntries = map.entrySet()
-                .stream()
-                .sorted(Map.Entry.<String, Integer>comparingByValue().reversed())
-                .limit(3);
-        topEntries.forEach(e -> topThreeList.add(e.getKey()));
-        if(userProfile != null) {
-            userProfile.setTopThreeMusicProfiles(topThreeList);
-            server.userCache.put(userID, userProfile);
-        } else {
-            UserProfile newUserProfile = new UserProfile(userID, topThreeList);
-            server.userCache.put(userID, newUserProfile);
-        }
+            return top;
+        });
         Payload payload = new Payload(0,
                 topThreeList,
                 System.nanoTime() - executionTimeStart,
@@ -222,7 +213,8 @@ class CachedServerJob<T> implements Callable<T> {
     private Payload getTopArtistsByUserGenre(String userID, String genre) throws InterruptedException {
         executionTimeStart = System.nanoTime();
         TimeUnit.MILLISECONDS.sleep(80);
-        UserProfile userProfile = server.userCache.get(userID);
+        UserProfile userProfile = server.userCache.peek(userID);
+        server.userCache.recordLookup(userProfile != null && userProfile.getTopArtistsByGenre(genre) != null);
         if(userProfile != null) {
             if(userProfile.getTopArtistsByGenre(genre) != null) {
                 Payload payload = new Payload(0,
@@ -233,32 +225,18 @@ class CachedServerJob<T> implements Callable<T> {
                 return payload;
             }
         }
-        ArrayList<String> list = readDataset();
-        HashMap<String, Integer> map = new HashMap<>();
-        ArrayList<String> topThreeList = new ArrayList<>();
-        for (String s : list) {
-            if (s.contains(userID) && s.contains(genre)) {
-                String[] line = s.split(",");
-                int numberOfTimesPlayed = Integer.parseInt(line[line.length - 1].trim());
-                for (String a : line) {
-                    if(a.startsWith("A")) {
-                        map.merge(a, numberOfTimesPlayed, Integer::sum);
-                    }
-                }
+        ArrayList<String> topThreeList = server.inFlightLists.execute("getTopArtistsByUserGenre(" + userID + "," + genre + ")", () -> {
+            ArrayList<String> top = server.engine.getTopArtistsByUserGenre(userID, genre, Dataset.TOP_K);
+            if(userProfile != null) {
+                userProfile.setTopArtistByGenre(genre, top);
+                server.userCache.put(userID, userProfile);
+            } else {
+                UserProfile newUserProfile = new UserProfile(userID, null);
+                newUserProfile.setTopArtistByGenre(genre, top);
+                server.userCache.put(userID, newUserProfile);
             }
-        }
-        Stream<Map.Entry<String, Integer>> topEntries = map.entrySet()
-                .stream()
-                .sorted(Map.Entry.<String, Integer>comparingByValue().reversed())
-                .limit(3);
-        topEntries.forEach(e -> topThreeList.add(e.getKey()));
-        if(userProfile != null) {
-            userProfile.setTopArtistByGenre(genre, topThreeList);
-            server.userCache.put(userID, userProfile);
-        } else {
-            UserProfile newUserProfile = new UserProfile(userID, topThreeList);
-            server.userCache.put(userID, newUserProfile);
-        }
+            return top;
+        });
         Payload payload = new Payload(0,
                 topThreeList,
                 System.nanoTime() - executionTimeStart,
@@ -268,22 +246,97 @@ class CachedServerJob<T> implements Callable<T> {
     }
 
     /**
-     * @return the dataset from file and return it as a list of strings
+     * Answers the queries found in the server caches, and all the others
+     * with a single call to the engine
+     * @param queries the batch
+     * @return one Payload per query, in the same order
+     * @throws InterruptedException in case of connectivity issues
      */
-    private ArrayList<String> readDataset() {
-        System.out.println("Reading data...");
-        String line;
-        ArrayList<String> list = new ArrayList<>();
-        try {
-            BufferedReader br = new BufferedReader(new FileReader("dataset.csv"));
-            while ((line = br.readLine()) != null) {
-                list.add(line);
+    private ArrayList<Payload> runBatch(List<Query> queries) throws InterruptedException {
+        executionTimeStart = System.nanoTime();
+        TimeUnit.MILLISECONDS.sleep(80);
+        Object[] answers = new Object[queries.size()];
+        ArrayList<Query> misses = new ArrayList<>();
+        for (int i = 0; i < answers.length; i++) {
+            answers[i] = fromCache(queries.get(i));
+            if (answers[i] == null) {
+                misses.add(queries.get(i));
             }
         }
-        catch (IOException e) {
-            e.printStackTrace();
+        if (!misses.isEmpty()) {
+            Object[] computed = server.engine.answerAll(misses);
+            for (int i = 0, j = 0; i < answers.length; i++) {
+                if (answers[i] == null) {
+                    answers[i] = computed[j++];
+                    toCache(queries.get(i), answers[i]);
+                }
+            }
+        }
+        long executionTime = System.nanoTime() - executionTimeStart;
+        ArrayList<Payload> payloads = new ArrayList<>(answers.length);
+        for (Object answer : answers) {
+            payloads.add(Payload.forAnswer(answer, executionTime, executionTimeStart - waitingTimeStart));
+        }
+        resetTimers();
+        return payloads;
+    }
+
+    /**
+     * @return the cached answer to q, or null if it is not cached
+     */
+    private Object fromCache(Query q) {
+        if (q.type == 1) {
+            MusicProfile profile = server.musicCache.get(q.arg1);
+            return profile == null ? null : (Object) profile.getTotalTimesPlayed();
+        }
+        // a hit only if the profile holds the answer
+        UserProfile userProfile = server.userCache.peek(q.type == 2 ? q.arg2 : q.arg1);
+        Object answer = userProfile == null ? null : fromProfile(q, userProfile);
+        server.userCache.recordLookup(answer != null);
+        return answer;
+    }
+
+    /**
+     * @return the answer to q held by the profile of its user, or null if it holds none
+     */
+    private static Object fromProfile(Query q, UserProfile userProfile) {
+        switch (q.type) {
+            case 2 :
+                MusicProfile musicProfile = userProfile.getMusicProfile(q.arg1);
+                return musicProfile == null ? null : (Object) musicProfile.getTimesPlayed();
+            case 3 :
+                return userProfile.getTopThreeMusicProfiles();
+            default :
+                return userProfile.getTopArtistsByGenre(q.arg2);
+        }
+    }
+
+    /**
+     * Puts the answer to q into the server caches
+     */
+    @SuppressWarnings("unchecked")
+    private void toCache(Query q, Object answer) {
+        if (q.type == 1) {
+            server.musicCache.put(q.arg1, new MusicProfile(q.arg1, null, 0, (Integer) answer, null));
+            return;
+        }
+        String userID = q.type == 2 ? q.arg2 : q.arg1;
+        // not a lookup for an answer, so not counted
+        UserProfile userProfile = server.userCache.peek(userID);
+        if (userProfile == null) {
+            userProfile = new UserProfile(userID, null);
+        }
+        switch (q.type) {
+            case 2 :
+                userProfile.addMusicProfile(new MusicProfile(q.arg1, null, (Integer) answer, 0, null));
+                break;
+            case 3 :
+                userProfile.setTopThreeMusicProfiles((ArrayList<String>) answer);
+                break;
+            default :
+                userProfile.setTopArtistByGenre(q.arg2, (ArrayList<String>) answer);
         }
-        return list;
+        server.userCache.put(userID, userProfile);
     }
 
     private void resetTimers() {
@@ -1,6 +1,7 @@
 import java.io.*;
 import java.util.*;
 
+import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
@@ -9,15 +10,19 @@ import java.util.regex.Pattern;
 import java.util.regex.Matcher;
 
 public class Client {
-    static Map<String, int[]> sumOfAllTimes;
+    static LatencyRecorder latencies;
+    static StubPool stubs;
+    static QuerySender sender;
     static LinkedHashMap<String, MusicProfile> musicCache;
     static LinkedHashMap<String, UserProfile> userCache;
     private static String FILENAME;
+    // the output file, written on a background thread
+    static ResultSink sink;
 
     public Client() {}
 
     public static void main(String[] args) {
-        sumOfAllTimes = new HashMap<>();
+        latencies = new LatencyRecorder();
 
         if (args.length > 0) {
             FILENAME = "naive_server_cached_client_" + args[0] + ".txt";
@@ -42,27 +47,57 @@ public class Client {
           }
         };
 
+        sink = new ResultSink(FILENAME);
         try {
 
             Registry proxyRegistry = LocateRegistry.getRegistry();
             GetConnection proxyStub = (GetConnection) proxyRegistry.lookup("Proxy");
+            // with -Dclient.routing=lease, servers are picked locally from a routing table leased from the proxy
+            if ("lease".equals(System.getProperty("client.routing"))) {
+                proxyStub = new LeasedRouter(proxyStub);
+            }
+            stubs = new StubPool();
+            sender = new QuerySender(proxyStub, stubs);
             ArrayList<String> queries = readQueries();
 
+            // with -Dclient.batchSize=N, cache misses are sent to the servers N at a time
+            int batchSize = Integer.getInteger("client.batchSize", 0);
+            QueryBatcher batcher = batchSize > 0 ? new QueryBatcher(proxyStub, stubs, batchSize, Client::handleResponse) : null;
+            // with -Dclient.inFlight=N, up to N queries are sent at once
+            int inFlight = Integer.getInteger("client.inFlight", 0);
+            if (inFlight > 0) {
+                QueryPipeline pipeline = new QueryPipeline(proxyStub, stubs, inFlight, Client::handleResponse);
+                for (String query : queries) {
+                    Runnable cached = lookupCache(query);
+                    if (cached != null) {
+                        pipeline.submit(cached);
+                    } else {
+                        pipeline.submit(query);
+                    }
+                }
+                pipeline.finish();
+                writeAvgTimes();
+                return;
+            }
+
             for (String query : queries) {
                 boolean foundInCache = checkCache(query);
-                if (!foundInCache) {
-                    int zone = Integer.parseInt(query.substring(query.length() -1));
-                    ConnectInfo hostServer = proxyStub.getConnection(zone);
-                    Registry serverRegistry = LocateRegistry.getRegistry();
-                    MusicStats serverStub = (MusicStats) serverRegistry.lookup(hostServer.address);
-                    passQuery(query, serverStub, hostServer.zone);
+                if (!foundInCache && batcher != null) {
+                    batcher.add(query);
+                } else if (!foundInCache) {
+                    passQuery(query);
                 }
             }
+            if (batcher != null) {
+                batcher.flush();
+            }
             writeAvgTimes();
 
         } catch (Exception e) {
             System.err.println("Client exception: " + e);
             e.printStackTrace();
+        } finally {
+            sink.close();
         }
     }
 
@@ -70,7 +105,7 @@ public class Client {
      * Read queries from file and returns them as ArrayList<String>.
      * No argument is required, but assumes you have a txt file with queries saved
      * as "queries.txt" in the same directory.
-     * @return ArrayList<String> of lines contained in file
+     * @return ArrayList<String> of the query lines in the file, skipping lines that are not MusicStats queries
      */
     private static ArrayList<String> readQueries() {
         System.out.println("Reading queries...");
@@ -80,6 +115,10 @@ public class Client {
         try {
             BufferedReader br = new BufferedReader(new FileReader("cachedQueries.txt"));
             while ((line = br.readLine()) != null) {
+                if (Query.parse(line) == null) {
+                    System.err.println("Skipping a line that is not a MusicStats query: " + line);
+                    continue;
+                }
                 list.add(line);
             }
         }
@@ -95,106 +134,136 @@ public class Client {
      * @return boolean: true if ID is found in cache, false if not
      */
     private static boolean checkCache(String query) {
+        Runnable output = lookupCache(query);
+        if (output == null) {
+            return false;
+        }
+        output.run();
+        return true;
+    }
+
+    /**
+     * Looks the query up in the cache, without writing the result yet.
+     * @param query: a query line from the query file
+     * @return the write of the cached result, or null if it is not in cache
+     */
+    private static Runnable lookupCache(String query) {
+        double[] processTime = new double[1];
+        Runnable output = findInCache(query, processTime);
+        if (output != null) {
+            latencies.recordCacheHit(getMethod(query), processTime[0]);
+        }
+        return output;
+    }
+
+    /**
+     * @param query: a query line from the query file
+     * @param processTime: filled in with the time the cache took, in ms
+     * @return the write of the cached result, or null if it is not in cache
+     */
+    private static Runnable findInCache(String query, double[] processTime) {
         String method = getMethod(query);
         String[] arguments = getArguments(query);
         MusicProfile mProfile;
         UserProfile uProfile;
-        double[] processTime = new double[1];
 
         long start = System.nanoTime();
         switch (method) {
             case "getTimesPlayed":
                 mProfile = musicCache.get(arguments[0]);
                 if (mProfile == null) {
-                    return false;
+                    return null;
                 } else {
                     int timesPlayed = mProfile.getTotalTimesPlayed();
                     processTime[0] = (System.nanoTime()-start) / 1000000.0;
 
-                    writeTimesPlayed(arguments[0], timesPlayed, processTime, 0);
-                    return true;
+                    return () -> writeTimesPlayed(arguments[0], timesPlayed, processTime, 0);
                 }
 
             case "getTimesPlayedByUser":
                 uProfile = userCache.get(arguments[1]);
                 if (uProfile == null) {
-                    return false;
+                    return null;
                 } else {
                     mProfile = uProfile.getMusicProfile(arguments[0]);
                     if (mProfile == null) {
-                        return false;
+                        return null;
                     } else {
                         int timesPlayed = mProfile.getTotalTimesPlayed();
                         processTime[0] = (System.nanoTime()-start) / 1000000.0;
 
-                        writeTimesPlayedByUser(arguments[0], timesPlayed, arguments[1], processTime, 0);
-                        return true;
+                        return () -> writeTimesPlayedByUser(arguments[0], timesPlayed, arguments[1], processTime, 0);
                     }
                 }
 
             case "getTopThreeMusicByUser":
                 uProfile = userCache.get(arguments[0]);
                 if (uProfile == null) {
-                    return false;
+                    return null;
                 } else {
                     List<String> topMusic = uProfile.getTopThreeMusicProfiles();
                     processTime[0] = (System.nanoTime()-start) / 1000000.0;
                     if (topMusic == null) {
-                      return false;
+                      return null;
                     }
 
-                    writeTopThreeMusicByUser(arguments[0], topMusic, processTime, 0);
-                    return true;
+                    return () -> writeTopThreeMusicByUser(arguments[0], topMusic, processTime, 0);
                 }
 
             case "getTopArtistsByUserGenre":
                 String genre = arguments[1];
                 uProfile = userCache.get(arguments[0]);
                 if (uProfile == null) {
-                    return false;
+                    return null;
                 } else {
                     List<String> topArtists = uProfile.getTopArtistsByGenre(genre);
                     processTime[0] = (System.nanoTime()-start) / 1000000.0;
                     if (topArtists == null) {
-                        return false;
+                        return null;
                     }
 
-                    writeTopArtistsByUserGenre(genre, arguments[0], topArtists, processTime, 0);
-                    return true;
+                    return () -> writeTopArtistsByUserGenre(genre, arguments[0], topArtists, processTime, 0);
                 }
         }
-        return false;
+        return null;
     }
 
     /**
-     * Passes a query to a provided stub and sends results to output writing.
+     * Sends a query to the server assigned by the proxy and sends results to output writing.
      * @param query: a line in a query file
-     * @param stub: a stub of an interface from a server
      */
-    private static void passQuery(String query, MusicStats stub, int zone) throws RemoteException, InterruptedException {
+    private static void passQuery(String query)
+            throws RemoteException, NotBoundException, InterruptedException {
+        QuerySender.Response response = sender.send(query);
+        handleResponse(query, response.payload, new double[] {response.turnaround, 0, 0}, response.server.zone);
+    }
+
+    /**
+     * Adds the times of a response to the averages, caches it and writes it to the output file.
+     * @param query: a line in a query file
+     * @param response: the answer from the server
+     * @param runtimes: turnaround time, execution and waiting time are filled in from response
+     * @param zone: the zone of the server
+     */
+    static void handleResponse(String query, Payload response, double[] runtimes, int zone) {
         String method = getMethod(query);
         String[] arguments = getArguments(query);
         String musicID, userID;
-        Payload response;
-        double[] runtimes = new double[3];
-        int[] sumTimes;
 
-        long start = System.nanoTime();
+        if (!response.isOk()) {
+            latencies.recordUnanswered(method, runtimes[0], zone);
+            writeUnanswered(query, response, runtimes[0], zone);
+            return;
+        }
+
+        runtimes[1] = response.executionTime / 1000000.0;
+        runtimes[2] = response.waitingTime / 1000000.0;
+
+        latencies.recordResponse(method, runtimes, zone);
+
         switch (method) {
             case "getTimesPlayed":
                 musicID = arguments[0];
-                response = stub.getTimesPlayed(musicID);
-                runtimes[0] = (System.nanoTime()-start) / 1000000.0;
-                runtimes[1] = response.executionTime / 1000000.0;
-                runtimes[2] = response.waitingTime / 1000000.0;
-
-                //sumTimes = [numCalls, sumTurnaround, sumExecution, sumWaiting]
-                sumTimes = sumOfAllTimes.getOrDefault(method, new int[4]);
-                sumTimes[0] ++;
-                sumTimes[1] += runtimes[0];
-                sumTimes[2] += runtimes[1];
-                sumTimes[3] += runtimes[2];
-                sumOfAllTimes.put(method, sumTimes);
 
                 musicCache.put(musicID, new MusicProfile(musicID, null, 0, response.timesPlayed, null));
                 writeTimesPlayed(musicID, response.timesPlayed, runtimes, zone);
@@ -203,17 +272,6 @@ public class Client {
             case "getTimesPlayedByUser":
                 musicID = arguments[0];
                 userID = arguments[1];
-                response = stub.getTimesPlayedByUser(musicID, userID);
-                runtimes[0] = (System.nanoTime()-start) / 1000000.0;
-                runtimes[1] = response.executionTime / 1000000.0;
-                runtimes[2] = response.waitingTime / 1000000.0;
-
-                sumTimes = sumOfAllTimes.getOrDefault(method, new int[4]);
-                sumTimes[0] ++;
-                sumTimes[1] += runtimes[0];
-                sumTimes[2] += runtimes[1];
-                sumTimes[3] += runtimes[2];
-                sumOfAllTimes.put(method, sumTimes);
 
                 MusicProfile mProfile = new MusicProfile(musicID, null, 0, response.timesPlayed, null);
                 musicCache.put(musicID, mProfile);
@@ -226,17 +284,6 @@ public class Client {
 
             case "getTopThreeMusicByUser":
                 userID = arguments[0];
-                response = stub.getTopThreeMusicByUser(userID);
-                runtimes[0] = (System.nanoTime()-start) / 1000000.0;
-                runtimes[1] = response.executionTime / 1000000.0;
-                runtimes[2] = response.waitingTime / 1000000.0;
-
-                sumTimes = sumOfAllTimes.getOrDefault(method, new int[4]);
-                sumTimes[0] ++;
-                sumTimes[1] += runtimes[0];
-                sumTimes[2] += runtimes[1];
-                sumTimes[3] += runtimes[2];
-                sumOfAllTimes.put(method, sumTimes);
 
                 userCache.put(userID, new UserProfile(userID, response.topThree));
                 writeTopThreeMusicByUser(userID, response.topThree, runtimes, zone);
@@ -245,17 +292,6 @@ public class Client {
             case "getTopArtistsByUserGenre":
                 userID = arguments[0];
                 String genre = arguments[1];
-                response = stub.getTopArtistsByUserGenre(userID, genre);
-                runtimes[0] = (System.nanoTime()-start) / 1000000.0;
-                runtimes[1] = response.executionTime / 1000000.0;
-                runtimes[2] = response.waitingTime / 1000000.0;
-
-                sumTimes = sumOfAllTimes.getOrDefault(method, new int[4]);
-                sumTimes[0] ++;
-                sumTimes[1] += runtimes[0];
-                sumTimes[2] += runtimes[1];
-                sumTimes[3] += runtimes[2];
-                sumOfAllTimes.put(method, sumTimes);
 
                 uProfile = new UserProfile(userID, null);
                 uProfile.setTopArtistByGenre(genre, response.topThree);
@@ -295,6 +331,20 @@ public class Client {
         return method;
     }
 
+    /**
+     * Writes a query the server did not answer to output file, e.g. because it was busy
+     * @param query: a line in a query file
+     * @param response: says why there is no answer
+     * @param turnaround: time until the client gave up, in ms
+     * @param zone: the zone of the last server tried
+     */
+    public static void writeUnanswered(String query, Payload response, double turnaround, int zone) {
+        StringBuilder record = new StringBuilder();
+        record.append(query + " was not answered: " + response.statusName() + ".");
+        record.append("\n\t(turnaround time: " + turnaround + " ms, last tried Server " + zone + ")\n");
+        sink.write(record.toString());
+    }
+
     /**
      * Writes the result of invocations to output file
      * @param musicID: represents a song
@@ -303,24 +353,16 @@ public class Client {
      * @param zone: the zone of a server
      */
     public static void writeTimesPlayed(String musicID, int timesPlayed, double[] runtimes, int zone) {
-        File file = new File(FILENAME);
-        try {
-            FileWriter fw = new FileWriter(file, true);
-            BufferedWriter bf = new BufferedWriter(fw);
-            bf.write("Music " + musicID + " was played " + timesPlayed + " times.");
-            if (runtimes.length == 3) {
-                bf.write("\n\t(turnaround time: " + runtimes[0] + " ms, execution time: " +
-                  runtimes[1] + " ms, waiting time: " + runtimes[2] + " ms, processed by Server "
-                  + zone + ")\n");
-            } else {
-                bf.write("\n\tProcessed by cache in " + runtimes[0] + " ms\n");
-            }
-            bf.close();
-            fw.close();
-
-        } catch (IOException e) {
-            e.printStackTrace();
+        StringBuilder record = new StringBuilder();
+        record.append("Music " + musicID + " was played " + timesPlayed + " times.");
+        if (runtimes.length == 3) {
+            record.append("\n\t(turnaround time: " + runtimes[0] + " ms, execution time: " +
+              runtimes[1] + " ms, waiting time: " + runtimes[2] + " ms, processed by Server "
+              + zone + ")\n");
+        } else {
+            record.append("\n\tProcessed by cache in " + runtimes[0] + " ms\n");
         }
+        sink.write(record.toString());
     }
 
     /**
@@ -332,25 +374,17 @@ public class Client {
      * @param zone: the zone of a server
      */
     public static void writeTimesPlayedByUser(String musicID, int timesPlayed, String userID, double[] runtimes, int zone) {
-        File file = new File(FILENAME);
-        try {
-            FileWriter fw = new FileWriter(file, true);
-            BufferedWriter bf = new BufferedWriter(fw);
-            bf.write("Music " + musicID + " was played " + timesPlayed + " times by user "
-                + userID + ".");
-            if (runtimes.length == 3) {
-                bf.write("\n\t(turnaround time: " + runtimes[0] + " ms, execution time: " +
-                  runtimes[1] + " ms, waiting time: " + runtimes[2] + " ms, processed by Server "
-                  + zone + ")\n");
-            } else {
-                bf.write("\n\tProcessed by cache in " + runtimes[0] + " ms\n");
-            }
-            bf.close();
-            fw.close();
-
-        } catch (IOException e) {
-            e.printStackTrace();
+        StringBuilder record = new StringBuilder();
+        record.append("Music " + musicID + " was played " + timesPlayed + " times by user "
+            + userID + ".");
+        if (runtimes.length == 3) {
+            record.append("\n\t(turnaround time: " + runtimes[0] + " ms, execution time: " +
+              runtimes[1] + " ms, waiting time: " + runtimes[2] + " ms, processed by Server "
+              + zone + ")\n");
+        } else {
+            record.append("\n\tProcessed by cache in " + runtimes[0] + " ms\n");
         }
+        sink.write(record.toString());
     }
 
     /**
@@ -361,25 +395,17 @@ public class Client {
      * @param zone: the zone of a server
      */
     public static void writeTopThreeMusicByUser(String userID, List<String> topMusic, double[] runtimes, int zone) {
-        File file = new File(FILENAME);
-        try {
-            FileWriter fw = new FileWriter(file, true);
-            BufferedWriter bf = new BufferedWriter(fw);
-            bf.write("Top three musics for user " + userID + " were " + topMusic.get(0)
-                + ", " + topMusic.get(1) + ", " + topMusic.get(2) + ".");
-            if (runtimes.length == 3) {
-                bf.write("\n\t(turnaround time: " + runtimes[0] + " ms, execution time: " +
-                  runtimes[1] + " ms, waiting time: " + runtimes[2] + " ms, processed by Server "
-                  + zone + ")\n");
-            } else {
-                bf.write("\n\tProcessed by cache in " + runtimes[0] + " ms\n");
-            }
-            bf.close();
-            fw.close();
-
-        } catch (IOException e) {
-            e.printStackTrace();
+        StringBuilder record = new StringBuilder();
+        record.append("Top three musics for user " + userID + " were "
+            + String.join(", ", topMusic) + ".");
+        if (runtimes.length == 3) {
+            record.append("\n\t(turnaround time: " + runtimes[0] + " ms, execution time: " +
+              runtimes[1] + " ms, waiting time: " + runtimes[2] + " ms, processed by Server "
+              + zone + ")\n");
+        } else {
+            record.append("\n\tProcessed by cache in " + runtimes[0] + " ms\n");
         }
+        sink.write(record.toString());
     }
 
     /**
@@ -391,51 +417,31 @@ public class Client {
      * @param zone: the zone of a server
      */
     public static void writeTopArtistsByUserGenre(String genre, String userID, List<String> topArtists, double[] runtimes, int zone) {
-        File file = new File(FILENAME);
-        try {
-            FileWriter fw = new FileWriter(file, true);
-            BufferedWriter bf = new BufferedWriter(fw);
-            bf.write("Top three artists for genre " + genre + " and user " + userID + " were ");
-            StringBuilder arts = new StringBuilder();
-            for (String artist : topArtists) {
-                arts.append(artist).append(", ");
-            }
-            bf.write(arts.substring(0, arts.length() - 2) + ".");
-            if (runtimes.length == 3) {
-                bf.write("\n\t(turnaround time: " + runtimes[0] + " ms, execution time: " +
-                  runtimes[1] + " ms, waiting time: " + runtimes[2] + " ms, processed by Server "
-                  + zone + ")\n");
-            } else {
-                bf.write("\n\tProcessed by cache in " + runtimes[0] + " ms\n");
-            }
-            bf.close();
-            fw.close();
-
-        } catch (IOException e) {
-            e.printStackTrace();
+        StringBuilder record = new StringBuilder();
+        record.append("Top three artists for genre " + genre + " and user " + userID + " were ");
+        StringBuilder arts = new StringBuilder();
+        for (String artist : topArtists) {
+            arts.append(artist).append(", ");
         }
+        record.append(arts.substring(0, arts.length() - 2) + ".");
+        if (runtimes.length == 3) {
+            record.append("\n\t(turnaround time: " + runtimes[0] + " ms, execution time: " +
+              runtimes[1] + " ms, waiting time: " + runtimes[2] + " ms, processed by Server "
+              + zone + ")\n");
+        } else {
+            record.append("\n\tProcessed by cache in " + runtimes[0] + " ms\n");
+        }
+        sink.write(record.toString());
     }
 
     /**
-     * Calculates and writes the average time measurements of every method call
-     * to output file
+     * Writes the latency percentiles of every method to output file, and saves
+     * the latencies next to it for LatencyReport, e.g. as latency_server_cache_1.hist
      */
     public static void writeAvgTimes() {
-        File file = new File(FILENAME);
+        sink.write(latencies.summary());
         try {
-            FileWriter fw = new FileWriter(file, true);
-            BufferedWriter bf = new BufferedWriter(fw);
-            bf.write("\n");
-            for (String method : sumOfAllTimes.keySet()) {
-                int[] times = sumOfAllTimes.get(method);
-                bf.write("\nAverage time used for method '" + method + "()' is:");
-                bf.write("\n\t\tTurnaround: " + times[1]/times[0] + " ms");
-                bf.write("\n\t\tExecution: " + times[2]/times[0] + " ms");
-                bf.write("\n\t\tWaiting: " + times[3]/times[0] + " ms\n");
-            }
-            bf.close();
-            fw.close();
-
+            latencies.save("latency_" + FILENAME.replace(".txt", ".hist"));
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -0,0 +1,237 @@
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToIntFunction;
+
+/**
+ * Thread-safe, segmented cache with CLOCK eviction, an approximation of LRU.
+ *
+ * Keys are spread over segments by hash, and each segment holds an equal
+ * share of the capacity. Reads never lock: a hit only marks its entry as
+ * referenced. Writes lock their segment, and evict while it is over
+ * capacity: the segment keeps its entries in a queue in insertion order,
+ * and the entry at the head is evicted unless it was referenced since it
+ * last came round, in which case it is cleared and moved to the tail.
+ * An eviction therefore costs O(1) amortized, whatever the size of the
+ * segment.
+ *
+ * The capacity is counted in weight units. With the default weigher
+ * every entry weighs 1, so the capacity is a number of entries; pass a
+ * weigher that estimates the size of a value to bound the cache in bytes.
+ * Larger caches get more segments, up to MAX_SEGMENTS, so that writes
+ * contend less, as long as a segment keeps room for MIN_SEGMENT_ENTRIES
+ * entries, or MIN_SEGMENT_BYTES for a weigher.
+ */
+class ConcurrentLruCache<K, V> {
+    private static final int MAX_SEGMENTS = 64;
+    private static final long MIN_SEGMENT_ENTRIES = 64;
+    private static final long MIN_SEGMENT_BYTES = 64 * 1024;
+
+    private final Segment<K, V>[] segments;
+    private final ToIntFunction<V> weigher;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param capacity max number of entries
+     */
+    ConcurrentLruCache(long capacity) {
+        this(capacity, value -> 1, MIN_SEGMENT_ENTRIES);
+    }
+
+    /**
+     * @param capacity max total weight of the entries
+     * @param weigher gives the weight of a value, e.g. its size in bytes
+     */
+    ConcurrentLruCache(long capacity, ToIntFunction<V> weigher) {
+        this(capacity, weigher, MIN_SEGMENT_BYTES);
+    }
+
+    // a generic array can only be made raw
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private ConcurrentLruCache(long capacity, ToIntFunction<V> weigher, long minSegmentCapacity) {
+        int n = 1;
+        while (n < MAX_SEGMENTS && capacity / (n * 2L) >= minSegmentCapacity) {
+            n *= 2;
+        }
+        this.segments = new Segment[n];
+        for (int i = 0; i < n; i++) {
+            // spread the remainder so the segments add up to capacity
+            segments[i] = new Segment<>(capacity / n + (i < capacity % n ? 1 : 0));
+        }
+        this.weigher = weigher;
+    }
+
+    /**
+     * @return the cached value, or null if key is not in the cache
+     */
+    V get(K key) {
+        V value = peek(key);
+        recordLookup(value != null);
+        return value;
+    }
+
+    /**
+     * Like get, but not counted as a hit or a miss. A value that holds
+     * several answers is only a hit if it holds the one asked for, so the
+     * caller counts it with recordLookup once it knows.
+     * @return the cached value, or null if key is not in the cache
+     */
+    V peek(K key) {
+        Node<K, V> node = segmentFor(key).map.get(key);
+        if (node == null) {
+            return null;
+        }
+        if (!node.referenced) {
+            // only written when it changes, so hot entries do not bounce between cores
+            node.referenced = true;
+        }
+        return node.value;
+    }
+
+    /**
+     * Counts a lookup made with peek
+     */
+    void recordLookup(boolean hit) {
+        if (hit) {
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+    }
+
+    /**
+     * Adds or replaces the value for key, evicting entries of its segment
+     * that were not used recently if needed
+     */
+    void put(K key, V value) {
+        Segment<K, V> segment = segmentFor(key);
+        Node<K, V> node = new Node<>(key, value, weigher.applyAsInt(value));
+        synchronized (segment) {
+            segment.unlink(segment.map.put(key, node));
+            segment.weight += node.weight;
+            segment.queue.add(node);
+            while (segment.weight > segment.capacity && segment.map.size() > 1) {
+                segment.evictOne(node);
+                evictions.increment();
+            }
+        }
+    }
+
+    void remove(K key) {
+        Segment<K, V> segment = segmentFor(key);
+        synchronized (segment) {
+            segment.unlink(segment.map.remove(key));
+        }
+    }
+
+    private Segment<K, V> segmentFor(K key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        return segments[h & (segments.length - 1)];
+    }
+
+    int size() {
+        int size = 0;
+        for (Segment<K, V> segment : segments) {
+            size += segment.map.size();
+        }
+        return size;
+    }
+
+    long getHits() {
+        return hits.sum();
+    }
+
+    long getMisses() {
+        return misses.sum();
+    }
+
+    long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return hits / lookups, or 0 before the first lookup
+     */
+    double getHitRatio() {
+        long h = hits.sum();
+        long lookups = h + misses.sum();
+        return lookups == 0 ? 0 : (double) h / lookups;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("size=%d, hits=%d, misses=%d, evictions=%d, hit ratio=%.2f",
+                size(), getHits(), getMisses(), getEvictions(), getHitRatio());
+    }
+
+    private static class Node<K, V> {
+        final K key;
+        final V value;
+        final int weight;
+        volatile boolean referenced;
+        // set under the segment's lock when the node leaves the map, it is
+        // then dropped from the queue when the clock hand gets to it
+        boolean removed;
+
+        Node(K key, V value, int weight) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    private static class Segment<K, V> {
+        final ConcurrentHashMap<K, Node<K, V>> map = new ConcurrentHashMap<>();
+        // every node in the map, and nodes removed since the hand last passed, oldest first
+        final ArrayDeque<Node<K, V>> queue = new ArrayDeque<>();
+        final long capacity;
+        long weight; // guarded by the segment's lock
+        int removed; // nodes in the queue that are no longer in the map, guarded by the lock
+
+        Segment(long capacity) {
+            this.capacity = capacity;
+        }
+
+        /**
+         * Accounts for a node that left the map. The queue is compacted
+         * when removed nodes would make up most of it, which keeps it
+         * bounded when entries are replaced or removed without evictions.
+         */
+        void unlink(Node<K, V> node) {
+            if (node == null) {
+                return;
+            }
+            node.removed = true;
+            weight -= node.weight;
+            if (++removed > map.size() + 16) {
+                queue.removeIf(n -> n.removed);
+                removed = 0;
+            }
+        }
+
+        /**
+         * Evicts the first node at the head of the queue that has not been
+         * referenced since it was last at the head, except keep
+         */
+        void evictOne(Node<K, V> keep) {
+            while (true) {
+                Node<K, V> node = queue.poll();
+                if (node.removed) {
+                    removed--;
+                } else if (node.referenced || node == keep) {
+                    node.referenced = false;
+                    queue.add(node);
+                } else {
+                    map.remove(node.key);
+                    node.removed = true;
+                    weight -= node.weight;
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -1,11 +1,16 @@
-import java.io.Serializable;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 /**
  * This class is just a wrapper around
  * the return value from Proxys remote
  * method, which is a String address
  * and an int port number
+ *
+ * It is sent for every query, so it is written in the WireFormat
  */
-public class ConnectInfo implements Serializable {
+public class ConnectInfo implements Externalizable {
     public String address;
     public int portNumber;
     public int zone;
@@ -15,4 +20,23 @@ public class ConnectInfo implements Serializable {
         this.portNumber = portNumber;
         this.zone = zone;
     }
+
+    /**
+     * For Externalizable only
+     */
+    public ConnectInfo() {}
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        out.writeUTF(address);
+        WireFormat.writeVarLong(out, portNumber);
+        WireFormat.writeVarLong(out, zone);
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException {
+        address = in.readUTF();
+        portNumber = (int) WireFormat.readVarLong(in);
+        zone = (int) WireFormat.readVarLong(in);
+    }
 }
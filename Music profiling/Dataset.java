@@ -0,0 +1,252 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * In-memory, column oriented copy of dataset.csv.
+ *
+ * The file is parsed once when the first Server starts. Every id is
+ * dictionary encoded and each row is stored in primitive columns, so
+ * answering a query never touches the disk or creates Strings per row.
+ *
+ * A row in dataset.csv looks like
+ *   musicId,artistId[,artistId ...],genre,userId,timesPlayed
+ * where every artistId starts with an "A".
+ */
+class Dataset implements QueryEngine {
+    static final String FILENAME = "dataset.csv";
+    // length of the top lists, set with -Dmusicstats.topK=<k>
+    static final int TOP_K = Integer.getInteger("musicstats.topK", 3);
+    private static Dataset instance;
+
+    /* dictionaries */
+    final IdDictionary musicIds = new IdDictionary();
+    final IdDictionary userIds = new IdDictionary();
+    final IdDictionary artistIds = new IdDictionary();
+    final IdDictionary genres = new IdDictionary();
+
+    /* columns, one entry per row */
+    int rows;
+    int[] music = new int[1024];
+    int[] user = new int[1024];
+    int[] genre = new int[1024];
+    int[] plays = new int[1024];
+    // the artists of row r are artists[artistStart[r]] .. artists[artistStart[r+1] - 1]
+    int[] artistStart = new int[1025];
+    int[] artists = new int[1024];
+
+    /* indexes, built once all rows are loaded */
+    PlayIndex playIndex;
+    TopKViews topKViews;
+
+    private Dataset() {}
+
+    /**
+     * All servers in the same JVM share one copy of the dataset
+     * @return the dataset, loading it from FILENAME on the first call
+     */
+    static synchronized Dataset getInstance() {
+        if (instance == null) {
+            instance = load(FILENAME);
+        }
+        return instance;
+    }
+
+    /**
+     * Parses a dataset file into columns
+     * @param filename path of the csv file
+     * @return the loaded dataset, empty if the file could not be read
+     */
+    static Dataset load(String filename) {
+        System.out.println("Loading " + filename + "...");
+        long start = System.nanoTime();
+        Dataset dataset = new Dataset();
+        try (BufferedReader br = new BufferedReader(new FileReader(filename))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                dataset.addRow(line.split(","));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        dataset.sortIds();
+        dataset.playIndex = new PlayIndex(dataset);
+        dataset.topKViews = new TopKViews(dataset, TOP_K);
+        System.out.printf("Loaded %d rows in %d ms%n", dataset.rows,
+                (System.nanoTime() - start) / 1000000);
+        return dataset;
+    }
+
+    /**
+     * Renumbers songs, users and artists in the order of their names, so
+     * that breaking a tie by the lowest id gives the same answer as
+     * ScanEngine, which breaks it by the smallest name
+     */
+    private void sortIds() {
+        int[] m = musicIds.sortByName();
+        int[] u = userIds.sortByName();
+        int[] a = artistIds.sortByName();
+        for (int r = 0; r < rows; r++) {
+            music[r] = m[music[r]];
+            user[r] = u[user[r]];
+        }
+        for (int i = 0; i < artistStart[rows]; i++) {
+            artists[i] = a[artists[i]];
+        }
+    }
+
+    private void addRow(String[] line) {
+        if (line.length < 4) {
+            return;
+        }
+        if (rows == music.length) {
+            int capacity = rows * 2;
+            music = Arrays.copyOf(music, capacity);
+            user = Arrays.copyOf(user, capacity);
+            genre = Arrays.copyOf(genre, capacity);
+            plays = Arrays.copyOf(plays, capacity);
+            artistStart = Arrays.copyOf(artistStart, capacity + 1);
+        }
+        int artistEnd = artistStart[rows];
+        for (int i = 1; i < line.length - 3; i++) {
+            if (line[i].startsWith("A")) {
+                if (artistEnd == artists.length) {
+                    artists = Arrays.copyOf(artists, artistEnd * 2);
+                }
+                artists[artistEnd++] = artistIds.encode(line[i]);
+            }
+        }
+        music[rows] = musicIds.encode(line[0]);
+        genre[rows] = genres.encode(line[line.length - 3]);
+        user[rows] = userIds.encode(line[line.length - 2]);
+        plays[rows] = Integer.parseInt(line[line.length - 1].trim());
+        artistStart[++rows] = artistEnd;
+    }
+
+    /**
+     * @param musicID representing a song
+     * @return the number of times a given musicId has been played
+     */
+    @Override
+    public int getTimesPlayed(String musicID) {
+        int m = musicIds.lookup(musicID);
+        return m == -1 ? 0 : playIndex.getTotalPlays(m);
+    }
+
+    /**
+     * @param musicID id representing a song
+     * @param userID id representing a user
+     * @return the number of times a user played the given song
+     */
+    @Override
+    public int getTimesPlayedByUser(String musicID, String userID) {
+        int m = musicIds.lookup(musicID);
+        int u = userIds.lookup(userID);
+        return (m == -1 || u == -1) ? 0 : playIndex.getPlays(u, m);
+    }
+
+    /**
+     * @param userID id used to identify a user
+     * @param k number of songs to return, answered from topKViews when k <= TOP_K
+     * @return the k most played musicId's for a given userId
+     */
+    @Override
+    public ArrayList<String> getTopMusicByUser(String userID, int k) {
+        int u = userIds.lookup(userID);
+        if (u != -1 && k <= topKViews.k) {
+            return decode(musicIds, topKViews.getTopMusic(u), k);
+        }
+        HashMap<Integer, Integer> counts = new HashMap<>();
+        if (u != -1) {
+            for (int r = 0; r < rows; r++) {
+                if (user[r] == u) {
+                    counts.merge(music[r], plays[r], Integer::sum);
+                }
+            }
+        }
+        return decode(musicIds, topK(counts, k), k);
+    }
+
+    /**
+     * @param userID id used to identify a user
+     * @param genreName music genre e.g. Rock
+     * @param k number of artists to return, answered from topKViews when k <= TOP_K
+     * @return the k most played artistId's within a specific genre
+     */
+    @Override
+    public ArrayList<String> getTopArtistsByUserGenre(String userID, String genreName, int k) {
+        int u = userIds.lookup(userID);
+        int g = genres.lookup(genreName);
+        if (u != -1 && g != -1 && k <= topKViews.k) {
+            return decode(artistIds, topKViews.getTopArtists(u, g), k);
+        }
+        HashMap<Integer, Integer> counts = new HashMap<>();
+        if (u != -1 && g != -1) {
+            for (int r = 0; r < rows; r++) {
+                if (user[r] == u && genre[r] == g) {
+                    for (int a = artistStart[r]; a < artistStart[r + 1]; a++) {
+                        counts.merge(artists[a], plays[r], Integer::sum);
+                    }
+                }
+            }
+        }
+        return decode(artistIds, topK(counts, k), k);
+    }
+
+    /**
+     * Selects the k ids with the highest counts without sorting every entry.
+     * Ties are broken by the lowest id, which is the smallest name.
+     */
+    static int[] topK(Map<Integer, Integer> counts, int k) {
+        int n = Math.min(k, counts.size());
+        int[] ids = new int[n];
+        int[] values = new int[n];
+        int size = 0;
+        for (Map.Entry<Integer, Integer> e : counts.entrySet()) {
+            size = offer(ids, values, size, e.getKey(), e.getValue());
+        }
+        return ids;
+    }
+
+    /**
+     * Inserts (id, value) into the descending arrays ids/values holding
+     * size entries, dropping the smallest entry when they are full
+     * @return the new number of entries
+     */
+    static int offer(int[] ids, int[] values, int size, int id, int value) {
+        int i = size;
+        if (size == ids.length) {
+            if (size == 0 || !ranksBefore(id, value, ids[size - 1], values[size - 1])) {
+                return size;
+            }
+            i = size - 1;
+        } else {
+            size++;
+        }
+        while (i > 0 && ranksBefore(id, value, ids[i - 1], values[i - 1])) {
+            ids[i] = ids[i - 1];
+            values[i] = values[i - 1];
+            i--;
+        }
+        ids[i] = id;
+        values[i] = value;
+        return size;
+    }
+
+    private static boolean ranksBefore(int id, int value, int otherId, int otherValue) {
+        return value > otherValue || (value == otherValue && id < otherId);
+    }
+
+    /**
+     * @return the names of the first (at most) k ids
+     */
+    static ArrayList<String> decode(IdDictionary dictionary, int[] ids, int k) {
+        int n = Math.min(k, ids.length);
+        ArrayList<String> list = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            list.add(dictionary.decode(ids[i]));
+        }
+        return list;
+    }
+}
@@ -0,0 +1,318 @@
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+
+/**
+ * Writes a synthetic dataset.csv, and query files that ask about it, for
+ * running the system at a larger scale than the files that come with it.
+ *
+ * Use
+ * > java DatasetGenerator [-rows n] [-songs n] [-users n] [-artists n] [-skew s]
+ *       [-queries n] [-mix a,b,c,d] [-zones n] [-zoneSkew s] [-seed n]
+ *       [-out dataset.csv] [-queryFile generatedQueries.txt]
+ * e.g.
+ * > java DatasetGenerator -rows 2000000 -queries 10000 -queryFile cachedQueries.txt
+ *
+ * Rows are written as the jobs read them: musicId, one or more artist ids,
+ * genre, userId and the number of plays. Every id is ten characters, a
+ * prefix (M, A or U) and nine base 62 digits, so they look like the ones
+ * in the given query files. Every song has a fixed genre and one to three
+ * artists, and each pair of song and user is written at most once.
+ *
+ * Popularity follows Zipf's law with exponent skew (default 1): the song
+ * of rank k is listened to in proportion to 1 / k^skew, and so are users
+ * and the artists that songs are given. A skew of 0 is uniform. Songs,
+ * users and artists default to a tenth, a twentieth and a fiftieth of
+ * the rows, but to no fewer than 2 sqrt(rows) songs and users, so a
+ * small dataset still has twice as many pairs of song and user as rows.
+ *
+ * With -queries, that many query lines are also written, in the format
+ * of cachedQueries.txt. mix weighs the four methods in the order of their
+ * type (default 1,1,1,1); the ids asked about are drawn from the rows, so
+ * popular songs and users are asked about more often and every query has
+ * an answer. The zone of a query is drawn from 1 to zones (default 5),
+ * zone k weighed 1 / k^zoneSkew (default 0, uniform).
+ *
+ * The same arguments and seed (default 42) give the same files.
+ */
+public class DatasetGenerator {
+    static final String[] GENRES = {"Pop", "Rock", "Jazz", "Blues", "Metal", "Classical", "HipHop",
+            "Country", "Electronic", "Reggae", "Folk", "Soul"};
+    static final String[] METHODS = LatencyRecorder.METHODS;
+    // ids are a prefix and ID_DIGITS base 62 digits
+    private static final int ID_DIGITS = 9;
+    private static final String DIGITS = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz";
+    private static final int MAX_ATTEMPTS = 100;
+
+    int rows = 100000;
+    // 0 means derived from rows
+    int songs;
+    int users;
+    int artists;
+    double skew = 1.0;
+    int[] mix = {1, 1, 1, 1};
+    int zones = 5;
+    double zoneSkew = 0;
+    long seed = 42;
+
+    // the generated rows, by index of song and user
+    private int[] songOfRow;
+    private int[] userOfRow;
+    private int[] playsOfRow;
+    private int[] genreOfSong;
+    private int[][] artistsOfSong;
+
+    /**
+     * Draws integers from 0 to n - 1, k weighed 1 / (k + 1)^exponent,
+     * by a binary search over the cumulative weights
+     */
+    static class ZipfSampler {
+        private final double[] cumulative;
+
+        ZipfSampler(int n, double exponent) {
+            cumulative = new double[n];
+            double sum = 0;
+            for (int k = 0; k < n; k++) {
+                sum += 1 / Math.pow(k + 1, exponent);
+                cumulative[k] = sum;
+            }
+        }
+
+        int next(Random random) {
+            double target = random.nextDouble() * cumulative[cumulative.length - 1];
+            int i = Arrays.binarySearch(cumulative, target);
+            return Math.min(i >= 0 ? i : -i - 1, cumulative.length - 1);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        DatasetGenerator generator = new DatasetGenerator();
+        String out = Dataset.FILENAME;
+        String queryFile = "generatedQueries.txt";
+        int queries = 0;
+
+        /* parse cmd line */
+        for (int i = 0; i < args.length; i += 2) {
+            if (i + 1 == args.length) {
+                System.err.println("Missing value for option " + args[i]);
+                System.exit(1);
+            }
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "-rows" :
+                    generator.rows = Integer.parseInt(value);
+                    break;
+                case "-songs" :
+                    generator.songs = Integer.parseInt(value);
+                    break;
+                case "-users" :
+                    generator.users = Integer.parseInt(value);
+                    break;
+                case "-artists" :
+                    generator.artists = Integer.parseInt(value);
+                    break;
+                case "-skew" :
+                    generator.skew = Double.parseDouble(value);
+                    break;
+                case "-queries" :
+                    queries = Integer.parseInt(value);
+                    break;
+                case "-mix" :
+                    generator.mix = Arrays.stream(value.split(",")).mapToInt(Integer::parseInt).toArray();
+                    break;
+                case "-zones" :
+                    generator.zones = Integer.parseInt(value);
+                    break;
+                case "-zoneSkew" :
+                    generator.zoneSkew = Double.parseDouble(value);
+                    break;
+                case "-seed" :
+                    generator.seed = Long.parseLong(value);
+                    break;
+                case "-out" :
+                    out = value;
+                    break;
+                case "-queryFile" :
+                    queryFile = value;
+                    break;
+                default :
+                    System.err.println("Unknown option " + args[i]);
+                    System.exit(1);
+            }
+        }
+
+        long start = System.nanoTime();
+        generator.generate();
+        generator.writeDataset(out);
+        System.out.printf("Wrote %d rows of %d songs, %d users and %d artists to %s in %d ms%n",
+                generator.rows, generator.songs, generator.users, generator.artists, out,
+                (System.nanoTime() - start) / 1000000);
+        if (queries > 0) {
+            generator.writeQueries(queryFile, queries);
+            System.out.printf("Wrote %d queries to %s%n", queries, queryFile);
+        }
+    }
+
+    /**
+     * Draws the songs, their artists and genres, and the rows
+     */
+    void generate() {
+        int fewest = Math.max(1, (int) Math.ceil(2 * Math.sqrt(rows)));
+        if (songs == 0) {
+            songs = Math.max(fewest, rows / 10);
+        }
+        if (users == 0) {
+            users = Math.max(fewest, rows / 20);
+        }
+        if (artists == 0) {
+            artists = Math.max(1, rows / 50);
+        }
+        if (rows > (long) songs * users / 2) {
+            throw new IllegalArgumentException(rows + " rows need more than " + songs + " songs and "
+                    + users + " users, every pair is written at most once");
+        }
+        Random random = new Random(seed);
+
+        ZipfSampler artistSampler = new ZipfSampler(artists, skew);
+        genreOfSong = new int[songs];
+        artistsOfSong = new int[songs][];
+        for (int song = 0; song < songs; song++) {
+            genreOfSong[song] = random.nextInt(GENRES.length);
+            // most songs have one artist, some two or three
+            int[] songArtists = new int[Math.min(artists, 1 + (random.nextInt(10) == 0 ? 1 + random.nextInt(2) : 0))];
+            for (int i = 0; i < songArtists.length; i++) {
+                int artist;
+                do {
+                    artist = artistSampler.next(random);
+                } while (contains(songArtists, i, artist));
+                songArtists[i] = artist;
+            }
+            artistsOfSong[song] = songArtists;
+        }
+
+        ZipfSampler songSampler = new ZipfSampler(songs, skew);
+        ZipfSampler userSampler = new ZipfSampler(users, skew);
+        HashSet<Long> pairs = new HashSet<>(rows * 2);
+        songOfRow = new int[rows];
+        userOfRow = new int[rows];
+        playsOfRow = new int[rows];
+        for (int row = 0; row < rows; row++) {
+            int song;
+            int user;
+            int attempts = 0;
+            do {
+                song = songSampler.next(random);
+                // past the popular pairs, fall back to a uniform user
+                user = attempts++ < MAX_ATTEMPTS ? userSampler.next(random) : random.nextInt(users);
+            } while (!pairs.add((long) song * users + user));
+            songOfRow[row] = song;
+            userOfRow[row] = user;
+            // geometric, most listens are a few plays and some are many
+            playsOfRow[row] = 1 + (int) (-Math.log(1 - random.nextDouble()) * 20);
+        }
+    }
+
+    private static boolean contains(int[] values, int length, int value) {
+        for (int i = 0; i < length; i++) {
+            if (values[i] == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Writes the rows generated, in the layout of dataset.csv
+     */
+    void writeDataset(String filename) throws IOException {
+        try (BufferedWriter out = new BufferedWriter(new FileWriter(filename))) {
+            StringBuilder line = new StringBuilder(80);
+            for (int row = 0; row < rows; row++) {
+                int song = songOfRow[row];
+                line.setLength(0);
+                line.append(id('M', song));
+                for (int artist : artistsOfSong[song]) {
+                    line.append(',').append(id('A', artist));
+                }
+                line.append(',').append(GENRES[genreOfSong[song]])
+                        .append(',').append(id('U', userOfRow[row]))
+                        .append(',').append(playsOfRow[row]).append('\n');
+                out.append(line);
+            }
+        }
+    }
+
+    /**
+     * Writes count query lines about the rows generated, in the format of cachedQueries.txt
+     */
+    void writeQueries(String filename, int count) throws IOException {
+        if (mix.length != METHODS.length) {
+            throw new IllegalArgumentException("mix needs a weight for each of the " + METHODS.length + " methods");
+        }
+        if (zones < 1 || zones > 9) {
+            throw new IllegalArgumentException("zones must be 1 to 9, the clients read a single digit");
+        }
+        if (rows == 0 && count > 0) {
+            throw new IllegalArgumentException("there are no rows to ask about");
+        }
+        int[] cumulativeMix = new int[mix.length];
+        for (int i = 0, sum = 0; i < mix.length; i++) {
+            cumulativeMix[i] = sum += mix[i];
+        }
+        if (cumulativeMix[mix.length - 1] <= 0) {
+            throw new IllegalArgumentException("mix needs a positive weight");
+        }
+        // a different stream from the rows, so the dataset stays the same whatever is asked
+        Random random = new Random(seed + 1);
+        ZipfSampler zoneSampler = new ZipfSampler(zones, zoneSkew);
+        try (BufferedWriter out = new BufferedWriter(new FileWriter(filename))) {
+            for (int i = 0; i < count; i++) {
+                int pick = random.nextInt(cumulativeMix[mix.length - 1]);
+                int type = 1;
+                while (cumulativeMix[type - 1] <= pick) {
+                    type++;
+                }
+                int row = random.nextInt(rows);
+                String music = id('M', songOfRow[row]);
+                String user = id('U', userOfRow[row]);
+                String arguments;
+                switch (type) {
+                    case 1 :
+                        arguments = music;
+                        break;
+                    case 2 :
+                        arguments = music + "," + user;
+                        break;
+                    case 3 :
+                        arguments = user;
+                        break;
+                    default :
+                        arguments = user + "," + GENRES[genreOfSong[songOfRow[row]]];
+                }
+                out.write(METHODS[type - 1] + "(" + arguments + ") Zone:" + (zoneSampler.next(random) + 1) + "\n");
+            }
+        }
+    }
+
+    /**
+     * Each base 62 digit of n, from the lowest, is mixed with the digit
+     * written before it. 7 is coprime with 62, so the digits of n can be
+     * got back in the same order, and no two n give the same id.
+     * @return a ten character id, the prefix and nine scrambled digits of n
+     */
+    static String id(char prefix, int n) {
+        char[] id = new char[ID_DIGITS + 1];
+        id[0] = prefix;
+        int value = n;
+        int mixed = 0;
+        for (int i = ID_DIGITS; i > 0; i--) {
+            mixed = (value % 62 * 7 + mixed * 11 + i) % 62;
+            id[i] = DIGITS.charAt(mixed);
+            value /= 62;
+        }
+        return new String(id);
+    }
+}
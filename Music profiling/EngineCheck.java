@@ -0,0 +1,82 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Objects;
+
+/**
+ * Checks that every QueryEngine gives the same answer to the same query,
+ * ties in the top lists included.
+ *
+ * Use
+ * > java EngineCheck [rows | dataset file] [queries | query file]
+ * e.g.
+ * > java EngineCheck 20000 500
+ * which asks 500 queries about a dataset of 20000 rows, both from
+ * DatasetGenerator, and is the default. A dataset file is checked with
+ * the queries of a query file, in the format of cachedQueries.txt.
+ *
+ * Dataset is compared with ScanEngine, sequential and in parallel, and
+ * with the single pass ScanEngine.answerAll() over all queries. Every
+ * query whose answers differ is printed, and the exit code is 1 if any do.
+ */
+public class EngineCheck {
+    public static void main(String[] args) throws IOException {
+        String dataset = args.length > 0 ? args[0] : "20000";
+        String queryFile = args.length > 1 ? args[1] : "500";
+        if (dataset.matches("\\d+")) {
+            File generated = File.createTempFile("dataset-" + dataset + "-", ".csv");
+            File generatedQueries = File.createTempFile("queries-" + dataset + "-", ".txt");
+            generated.deleteOnExit();
+            generatedQueries.deleteOnExit();
+            DatasetGenerator generator = new DatasetGenerator();
+            generator.rows = Integer.parseInt(dataset);
+            generator.generate();
+            generator.writeDataset(generated.getPath());
+            generator.writeQueries(generatedQueries.getPath(), Integer.parseInt(queryFile));
+            dataset = generated.getPath();
+            queryFile = generatedQueries.getPath();
+        }
+
+        ArrayList<Query> queries = new ArrayList<>();
+        try (BufferedReader br = new BufferedReader(new FileReader(queryFile))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                Query query = Query.parse(line);
+                if (query != null) {
+                    queries.add(query);
+                }
+            }
+        }
+
+        Dataset heap = Dataset.load(dataset);
+        String[] names = {"ScanEngine", "ScanEngine parallel"};
+        QueryEngine[] engines = {new ScanEngine(dataset, 1),
+                new ScanEngine(dataset, Math.max(2, Runtime.getRuntime().availableProcessors()))};
+        Object[] batch = engines[0].answerAll(queries);
+
+        int differences = 0;
+        for (int i = 0; i < queries.size(); i++) {
+            Query query = queries.get(i);
+            Object expected = query.answer(heap);
+            for (int e = 0; e < engines.length; e++) {
+                differences += compare(query, names[e], expected, query.answer(engines[e]));
+            }
+            differences += compare(query, "ScanEngine.answerAll", expected, batch[i]);
+        }
+        System.out.printf("%d queries on %s, %d answers differ from Dataset%n", queries.size(), dataset, differences);
+        System.exit(differences == 0 ? 0 : 1);
+    }
+
+    /**
+     * @return 1 if the answers differ, after printing them
+     */
+    private static int compare(Query query, String engine, Object expected, Object actual) {
+        if (Objects.equals(expected, actual)) {
+            return 0;
+        }
+        System.out.println("FAILED: " + query + " is " + expected + " in Dataset but " + actual + " in " + engine);
+        return 1;
+    }
+}
@@ -4,4 +4,16 @@ import java.rmi.RemoteException;
 public interface GetConnection extends Remote {
 
     ConnectInfo getConnection(int zoneNumber) throws RemoteException;
-}
\ No newline at end of file
+
+    /**
+     * Like getConnection(zoneNumber), but sends queries with the same key
+     * to the same server while it is not overloaded, so its cache has them
+     * @param key the music or user the query is about, see Query.routingKey()
+     */
+    ConnectInfo getConnection(int zoneNumber, String key) throws RemoteException;
+
+    /**
+     * @return a snapshot of the routing policy, for clients that route locally
+     */
+    RoutingTable getRoutingTable() throws RemoteException;
+}
@@ -0,0 +1,81 @@
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+
+/**
+ * Consistent hash ring over a fixed set of servers.
+ *
+ * Every server is placed on the ring at VIRTUAL_NODES points, so keys
+ * spread evenly and a server joining or leaving only moves the keys next
+ * to its own points. A ring is built once for a set of servers and never
+ * changed; the proxy builds a new one when the servers change.
+ */
+class HashRing {
+    private static final int VIRTUAL_NODES = 100;
+
+    private final long[] points;
+    private final int[] owners;
+    private final int servers;
+
+    /**
+     * @param addresses the servers on the ring, owners are indexes into this array
+     */
+    HashRing(String[] addresses) {
+        this.servers = addresses.length;
+        long[][] nodes = new long[addresses.length * VIRTUAL_NODES][];
+        for (int i = 0; i < addresses.length; i++) {
+            for (int v = 0; v < VIRTUAL_NODES; v++) {
+                nodes[i * VIRTUAL_NODES + v] = new long[] {hash(addresses[i] + "#" + v), i};
+            }
+        }
+        Arrays.sort(nodes, (a, b) -> Long.compare(a[0], b[0]));
+        this.points = new long[nodes.length];
+        this.owners = new int[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            points[i] = nodes[i][0];
+            owners[i] = (int) nodes[i][1];
+        }
+    }
+
+    /**
+     * Walks the ring clockwise from key and returns the first server that
+     * accepts, so a key keeps going to the same server while it has room.
+     * @param accepts whether a server, by index, may take the key
+     * @return the index of the server, or -1 if none accepts
+     */
+    int lookup(String key, IntPredicate accepts) {
+        if (points.length == 0) {
+            return -1;
+        }
+        int start = Arrays.binarySearch(points, hash(key));
+        if (start < 0) {
+            start = -start - 1;
+        }
+        boolean[] tried = new boolean[servers];
+        int left = servers;
+        for (int i = 0; i < points.length && left > 0; i++) {
+            int owner = owners[(start + i) % points.length];
+            if (!tried[owner]) {
+                if (accepts.test(owner)) {
+                    return owner;
+                }
+                tried[owner] = true;
+                left--;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * String.hashCode spreads similar strings poorly, so its bits are
+     * mixed with the finalizer of MurmurHash3
+     */
+    static long hash(String s) {
+        long h = s.hashCode() * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb3e95a3f1b3aL;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,277 @@
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Times the hot paths of a server and a client, so that a change to an
+ * engine can be judged by a number rather than by the output files.
+ *
+ * Use
+ * > java HotPathBenchmark [dataset file | rows] [seconds per round]
+ * e.g.
+ * > java HotPathBenchmark 200000
+ * which runs against a dataset of 200000 rows from DatasetGenerator, always
+ * the same for the same size. With a file name it runs against that file instead;
+ * the default is dataset.csv.
+ *
+ * Rounds are measured in time rather than in operations, so a slow
+ * operation gets as long to settle as a fast one. Every benchmark first
+ * runs for WARMUP_ROUNDS rounds' worth of time to let the JIT compile it,
+ * then ROUNDS measured rounds of at least the given seconds (default 1),
+ * each as many calls as fit. It prints the mean time per operation over
+ * the rounds with its 95% confidence interval, and the fastest and
+ * slowest round; a wide interval means the number is not to be trusted.
+ * The clock is read once per batch of calls that takes about BATCH_MILLIS,
+ * not once per call. The server jobs sleep 80 ms to stand in for
+ * the network, so what is timed here is what they call: the QueryEngine
+ * for a cache miss and the server cache for a hit. The ids queried are
+ * drawn from the dataset with a fixed seed.
+ */
+public class HotPathBenchmark {
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int ROUNDS = 5;
+    // Student's t for a two sided 95% interval with ROUNDS - 1 degrees of freedom
+    private static final double T_95 = 2.776;
+    private static final long BATCH_MILLIS = 10;
+    private static final int SAMPLES = 256;
+    private static final long SEED = 42;
+    private static final int FULL_CACHE_ENTRIES = 100000;
+
+    // results are written here so the JIT can not drop the work
+    static volatile long blackhole;
+    private static final PrintStream REPORT = System.out;
+    private static long roundNanos;
+
+    public static void main(String[] args) throws Exception {
+        String filename = args.length > 0 ? args[0] : Dataset.FILENAME;
+        double seconds = args.length > 1 ? Double.parseDouble(args[1]) : 1;
+        roundNanos = (long) (seconds * 1e9);
+        if (filename.matches("\\d+")) {
+            int rows = Integer.parseInt(filename);
+            File generated = File.createTempFile("dataset-" + rows + "-", ".csv");
+            generated.deleteOnExit();
+            filename = generated.getPath();
+            DatasetGenerator generator = new DatasetGenerator();
+            generator.rows = rows;
+            generator.seed = SEED;
+            generator.generate();
+            generator.writeDataset(filename);
+        }
+
+        String[][] samples = sampleRows(filename);
+        System.out.printf(Locale.ROOT, "%s, %d ids sampled, %d + %d rounds of %.1f s%n",
+                filename, samples.length, WARMUP_ROUNDS, ROUNDS, seconds);
+        System.out.printf("%-40s %14s %10s %14s %14s %12s%n",
+                "benchmark", "mean ns/op", "+- 95%", "min ns/op", "max ns/op", "calls");
+
+        String dataset = filename;
+        // Dataset.load says what it is loading, hundreds of times here
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        run("readDataset", () -> Dataset.load(dataset).rows);
+        System.setOut(REPORT);
+
+        Dataset heap = Dataset.load(filename);
+        runEngine("Dataset", heap, samples);
+        ScanEngine mapped = new ScanEngine(filename, 1);
+        runEngine("ScanEngine", mapped, samples);
+
+        // room for every sample, so every lookup is a hit
+        ConcurrentLruCache<String, MusicProfile> cache = new ConcurrentLruCache<>(4 * SAMPLES);
+        for (String[] row : samples) {
+            cache.put(row[0], new MusicProfile(row[0], null, 0, heap.getTimesPlayed(row[0]), null));
+        }
+        run("cache hit getTimesPlayed", new LongSupplier() {
+            int i;
+            public long getAsLong() {
+                return cache.get(samples[i++ & (SAMPLES - 1)][0]).getTotalTimesPlayed();
+            }
+        });
+
+        // four times as many keys as fit, so every put on the full cache evicts
+        ConcurrentLruCache<String, Integer> full = new ConcurrentLruCache<>(FULL_CACHE_ENTRIES);
+        String[] keys = new String[4 * FULL_CACHE_ENTRIES];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = Integer.toString(i);
+        }
+        run("cache put, full at " + FULL_CACHE_ENTRIES + " entries", new LongSupplier() {
+            int i;
+            public long getAsLong() {
+                full.put(keys[i], i);
+                i = (i + 1) % keys.length;
+                return i;
+            }
+        });
+
+        String[] lines = queryLines(samples);
+        run("Client.getMethod", new LongSupplier() {
+            int i;
+            public long getAsLong() {
+                return Client.getMethod(lines[i++ & (SAMPLES - 1)]).length();
+            }
+        });
+        run("Client.getArguments", new LongSupplier() {
+            int i;
+            public long getAsLong() {
+                return Client.getArguments(lines[i++ & (SAMPLES - 1)]).length;
+            }
+        });
+        run("Query.parse", new LongSupplier() {
+            int i;
+            public long getAsLong() {
+                return Query.parse(lines[i++ & (SAMPLES - 1)]).type;
+            }
+        });
+
+        Payload payload = new Payload(0, heap.getTopMusicByUser(samples[0][2], Dataset.TOP_K), 81250000, 2300000);
+        byte[] encoded = encode(payload);
+        run("Payload encode (" + encoded.length + " bytes)", () -> encode(payload).length);
+        run("Payload decode", () -> decode(encoded).executionTime);
+        System.exit(0);
+    }
+
+    private static void runEngine(String name, QueryEngine engine, String[][] samples) {
+        String[] methods = {"getTimesPlayed", "getTimesPlayedByUser",
+                "getTopThreeMusicByUser", "getTopArtistsByUserGenre"};
+        for (int type = 1; type <= 4; type++) {
+            Query[] queries = new Query[SAMPLES];
+            for (int i = 0; i < SAMPLES; i++) {
+                queries[i] = query(type, samples[i]);
+            }
+            run(name + "." + methods[type - 1], new LongSupplier() {
+                int i;
+                public long getAsLong() {
+                    return queries[i++ & (SAMPLES - 1)].answer(engine).hashCode();
+                }
+            });
+        }
+    }
+
+    /**
+     * Prints the mean of op over the rounds, in ns per call, with its 95%
+     * confidence interval and the fastest and slowest round
+     */
+    private static void run(String name, LongSupplier op) {
+        // the warm-up also finds how many calls take about BATCH_MILLIS
+        long batch = 1;
+        long warmupEnd = System.nanoTime() + WARMUP_ROUNDS * roundNanos;
+        while (System.nanoTime() - warmupEnd < 0) {
+            if (time(op, batch) < TimeUnit.MILLISECONDS.toNanos(BATCH_MILLIS)) {
+                batch *= 2;
+            }
+        }
+
+        double[] rounds = new double[ROUNDS];
+        long calls = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            long elapsed = 0;
+            long roundCalls = 0;
+            while (elapsed < roundNanos) {
+                elapsed += time(op, batch);
+                roundCalls += batch;
+            }
+            rounds[round] = (double) elapsed / roundCalls;
+            calls += roundCalls;
+        }
+
+        double mean = Arrays.stream(rounds).average().orElse(0);
+        double variance = Arrays.stream(rounds).map(r -> (r - mean) * (r - mean)).sum() / (ROUNDS - 1);
+        REPORT.printf(Locale.ROOT, "%-40s %14.1f %10.1f %14.1f %14.1f %12d%n", name, mean,
+                T_95 * Math.sqrt(variance / ROUNDS),
+                Arrays.stream(rounds).min().orElse(0), Arrays.stream(rounds).max().orElse(0), calls);
+    }
+
+    /**
+     * @return the ns taken by calls calls of op
+     */
+    private static long time(LongSupplier op, long calls) {
+        long sink = 0;
+        long start = System.nanoTime();
+        for (long i = 0; i < calls; i++) {
+            sink += op.getAsLong();
+        }
+        long elapsed = System.nanoTime() - start;
+        blackhole = sink;
+        return elapsed;
+    }
+
+    /**
+     * @return SAMPLES rows drawn from the file, each as {musicId, genre, userId}
+     */
+    private static String[][] sampleRows(String filename) throws IOException {
+        ArrayList<String[]> rows = new ArrayList<>();
+        try (BufferedReader br = new BufferedReader(new FileReader(filename))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                String[] row = line.split(",");
+                rows.add(new String[] {row[0], row[row.length - 3], row[row.length - 2]});
+            }
+        }
+        Random random = new Random(SEED);
+        String[][] samples = new String[SAMPLES][];
+        for (int i = 0; i < SAMPLES; i++) {
+            samples[i] = rows.get(random.nextInt(rows.size()));
+        }
+        return samples;
+    }
+
+    /**
+     * @param row {musicId, genre, userId}
+     * @return the query of the given type about the row
+     */
+    private static Query query(int type, String[] row) {
+        switch (type) {
+            case 1 :
+                return new Query(1, row[0], null);
+            case 2 :
+                return new Query(2, row[0], row[2]);
+            case 3 :
+                return new Query(3, row[2], null);
+            default :
+                return new Query(4, row[2], row[1]);
+        }
+    }
+
+    /**
+     * @return a line of a query file for every sample, cycling through the four methods
+     */
+    private static String[] queryLines(String[][] samples) {
+        String[] lines = new String[samples.length];
+        for (int i = 0; i < samples.length; i++) {
+            lines[i] = query(i % 4 + 1, samples[i]) + " Zone:" + (i % 5 + 1);
+        }
+        return lines;
+    }
+
+    private static byte[] encode(Payload payload) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                out.writeObject(payload);
+            }
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Payload decode(byte[] bytes) {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return (Payload) in.readObject();
+        } catch (IOException | ClassNotFoundException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+
+/**
+ * Maps String ids from the dataset (musicId, userId, artistId, genre)
+ * to dense int ids and back.
+ *
+ * Ids are handed out in the order they are first seen, so the int id
+ * can be used directly as an index into per-id arrays. sortByName()
+ * renumbers them in the order of their names.
+ */
+class IdDictionary {
+    private final HashMap<String, Integer> ids = new HashMap<>();
+    private ArrayList<String> names = new ArrayList<>();
+
+    /**
+     * @return the id of name, adding it to the dictionary if it is new
+     */
+    int encode(String name) {
+        Integer id = ids.get(name);
+        if (id == null) {
+            id = names.size();
+            ids.put(name, id);
+            names.add(name);
+        }
+        return id;
+    }
+
+    /**
+     * @return the id of name, or -1 if it is not in the dictionary
+     */
+    int lookup(String name) {
+        Integer id = ids.get(name);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * Renumbers the ids in the order of their names, so a lower id is a smaller name
+     * @return the new id of every old id
+     */
+    int[] sortByName() {
+        ArrayList<String> sorted = new ArrayList<>(names);
+        Collections.sort(sorted);
+        int[] renumbered = new int[sorted.size()];
+        for (int id = 0; id < sorted.size(); id++) {
+            renumbered[ids.put(sorted.get(id), id)] = id;
+        }
+        names = sorted;
+        return renumbered;
+    }
+
+    String decode(int id) {
+        return names.get(id);
+    }
+
+    int size() {
+        return names.size();
+    }
+}
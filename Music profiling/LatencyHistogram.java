@@ -0,0 +1,132 @@
+/**
+ * A histogram of latencies in nanoseconds, in the style of HdrHistogram.
+ *
+ * Values below 128 ns get a bucket each. Above that, every power of two
+ * is split into 64 buckets, so a value is off by less than 1/64th, about
+ * 1.6%, wherever it falls. Values above MAX_NANOS (an hour) are counted
+ * as MAX_NANOS. Recording is a few shifts and an array increment, with
+ * no allocation.
+ *
+ * Histograms of the same kind can be added together, including ones
+ * read back from another process with parse().
+ */
+class LatencyHistogram {
+    static final long MAX_NANOS = 3600L * 1000000000L;
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private final long[] counts = new long[index(MAX_NANOS) + 1];
+    private long count;
+    private long min = Long.MAX_VALUE;
+    private long max;
+    private long sum;
+
+    /**
+     * @param nanos a latency, negative values count as 0
+     */
+    void record(long nanos) {
+        long value = Math.max(0, Math.min(nanos, MAX_NANOS));
+        counts[index(value)]++;
+        count++;
+        sum += value;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    /**
+     * Adds the values recorded in other to this histogram
+     */
+    void add(LatencyHistogram other) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+        sum += other.sum;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    long getCount() {
+        return count;
+    }
+
+    long getMax() {
+        return max;
+    }
+
+    double getMean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * @param fraction e.g. 0.99 for the 99th percentile
+     * @return the highest value in the bucket holding the percentile, at most the max
+     */
+    long percentile(double fraction) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(fraction * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(highestValue(i), max);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Buckets 0-127 hold their own value. Above that, a value with its
+     * highest bit at position 6 + e is in bucket e * 64 + (value >>> e).
+     */
+    static int index(long value) {
+        if (value < 2 * SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return shift * SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    static long highestValue(int index) {
+        if (index < 2 * SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long subBucket = index - (long) shift * SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    /**
+     * @return count, min, max and sum, then index:count for every bucket in use,
+     * separated by spaces
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(count).append(' ').append(count == 0 ? 0 : min).append(' ').append(max).append(' ').append(sum);
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] != 0) {
+                sb.append(' ').append(i).append(':').append(counts[i]);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @param fields the fields of toString(), from the first on
+     */
+    static LatencyHistogram parse(String[] fields, int first) {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.count = Long.parseLong(fields[first]);
+        histogram.min = histogram.count == 0 ? Long.MAX_VALUE : Long.parseLong(fields[first + 1]);
+        histogram.max = Long.parseLong(fields[first + 2]);
+        histogram.sum = Long.parseLong(fields[first + 3]);
+        for (int i = first + 4; i < fields.length; i++) {
+            int colon = fields[i].indexOf(':');
+            histogram.counts[Integer.parseInt(fields[i].substring(0, colon))] = Long.parseLong(fields[i].substring(colon + 1));
+        }
+        return histogram;
+    }
+}
@@ -0,0 +1,170 @@
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Locale;
+
+/**
+ * The latencies seen by a client, one LatencyHistogram per method, zone
+ * and kind of time: turnaround, execution or waiting.
+ *
+ * Answers from the client cache are recorded as zone 0, with a
+ * turnaround time only. Queries that were not answered, because the
+ * server was busy, the deadline passed or the job failed, count in the
+ * turnaround times too, so the slowest queries under overload are not
+ * left out of the percentiles. Their turnaround is also kept apart as
+ * the kind "unanswered". The histograms for a zone are made the first
+ * time it is seen; after that recording does not allocate. Not thread
+ * safe: the clients record from the thread that writes their results.
+ *
+ * save() writes the histograms to a text file, with the time recording
+ * started and ended, so that LatencyReport can merge the files of many
+ * clients.
+ */
+class LatencyRecorder {
+    static final String[] KINDS = {"turnaround", "execution", "waiting", "unanswered"};
+    static final int TURNAROUND = 0;
+    static final int WAITING = 2;
+    static final int UNANSWERED = 3;
+    static final String[] METHODS = {"getTimesPlayed", "getTimesPlayedByUser",
+            "getTopThreeMusicByUser", "getTopArtistsByUserGenre"};
+    static final double[] PERCENTILES = {0.50, 0.90, 0.99, 0.999};
+    static final int CACHE_ZONE = 0;
+
+    // histograms[kind][method type - 1][zone], each zone array grown when a higher zone is seen
+    private final LatencyHistogram[][][] histograms = new LatencyHistogram[KINDS.length][METHODS.length][0];
+    private final long startMillis = System.currentTimeMillis();
+
+    /**
+     * @param method a MusicStats method name
+     * @param runtimes turnaround, execution and waiting time in ms
+     * @param zone the zone of the server that answered
+     */
+    void recordResponse(String method, double[] runtimes, int zone) {
+        int type = Query.typeOf(method);
+        if (type == 0) {
+            return;
+        }
+        for (int kind = TURNAROUND; kind <= WAITING; kind++) {
+            histogram(kind, type, zone).record(Math.round(runtimes[kind] * 1000000));
+        }
+    }
+
+    /**
+     * @param turnaround the time until the client gave up, in ms
+     * @param zone the zone of the last server tried
+     */
+    void recordUnanswered(String method, double turnaround, int zone) {
+        int type = Query.typeOf(method);
+        if (type == 0) {
+            return;
+        }
+        histogram(TURNAROUND, type, zone).record(Math.round(turnaround * 1000000));
+        histogram(UNANSWERED, type, zone).record(Math.round(turnaround * 1000000));
+    }
+
+    /**
+     * @param millis the time the client cache took to answer
+     */
+    void recordCacheHit(String method, double millis) {
+        int type = Query.typeOf(method);
+        if (type != 0) {
+            histogram(0, type, CACHE_ZONE).record(Math.round(millis * 1000000));
+        }
+    }
+
+    private LatencyHistogram histogram(int kind, int type, int zone) {
+        LatencyHistogram[] zones = histograms[kind][type - 1];
+        if (zone >= zones.length) {
+            LatencyHistogram[] grown = new LatencyHistogram[zone + 1];
+            System.arraycopy(zones, 0, grown, 0, zones.length);
+            histograms[kind][type - 1] = zones = grown;
+        }
+        if (zones[zone] == null) {
+            zones[zone] = new LatencyHistogram();
+        }
+        return zones[zone];
+    }
+
+    /**
+     * @return the latencies of a method and kind over all server zones, leaving out cache hits
+     */
+    LatencyHistogram serverLatency(int kind, int type) {
+        LatencyHistogram total = new LatencyHistogram();
+        LatencyHistogram[] zones = histograms[kind][type - 1];
+        for (int zone = CACHE_ZONE + 1; zone < zones.length; zone++) {
+            if (zones[zone] != null) {
+                total.add(zones[zone]);
+            }
+        }
+        return total;
+    }
+
+    LatencyHistogram cacheLatency(int type) {
+        LatencyHistogram[] zones = histograms[0][type - 1];
+        return zones.length > CACHE_ZONE && zones[CACHE_ZONE] != null ? zones[CACHE_ZONE] : new LatencyHistogram();
+    }
+
+    /**
+     * @return the percentiles of every method over all server zones, and of
+     * the cache hits, as written at the end of a client's output file
+     */
+    String summary() {
+        StringBuilder sb = new StringBuilder("\n");
+        for (int type = 1; type <= METHODS.length; type++) {
+            LatencyHistogram cache = cacheLatency(type);
+            if (serverLatency(0, type).getCount() == 0 && cache.getCount() == 0) {
+                continue;
+            }
+            sb.append("\nTime used for method '").append(METHODS[type - 1]).append("()':");
+            for (int kind = 0; kind < KINDS.length; kind++) {
+                LatencyHistogram latency = serverLatency(kind, type);
+                if (latency.getCount() > 0) {
+                    String name = Character.toUpperCase(KINDS[kind].charAt(0)) + KINDS[kind].substring(1);
+                    sb.append("\n\t\t").append(name).append(": ").append(describe(latency));
+                }
+            }
+            if (cache.getCount() > 0) {
+                sb.append("\n\t\tClient cache: ").append(describe(cache));
+            }
+            sb.append("\n");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Writes every histogram in use to filename, one per line as
+     * method zone kind, then the fields of LatencyHistogram.toString()
+     */
+    void save(String filename) throws IOException {
+        try (PrintWriter out = new PrintWriter(new FileWriter(filename))) {
+            out.println("# " + startMillis + " " + System.currentTimeMillis());
+            for (int kind = 0; kind < KINDS.length; kind++) {
+                for (int type = 1; type <= METHODS.length; type++) {
+                    LatencyHistogram[] zones = histograms[kind][type - 1];
+                    for (int zone = 0; zone < zones.length; zone++) {
+                        if (zones[zone] != null) {
+                            out.println(METHODS[type - 1] + " " + zone + " " + KINDS[kind] + " " + zones[zone]);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return e.g. "mean 81.20, p50 80.90, p90 ..., max 95.10 ms (52)"
+     */
+    static String describe(LatencyHistogram histogram) {
+        StringBuilder sb = new StringBuilder(String.format(Locale.ROOT, "mean %.3f", histogram.getMean() / 1e6));
+        for (double p : PERCENTILES) {
+            sb.append(String.format(Locale.ROOT, ", p%s %.3f", percentileName(p), histogram.percentile(p) / 1e6));
+        }
+        sb.append(String.format(Locale.ROOT, ", max %.3f ms (%d)", histogram.getMax() / 1e6, histogram.getCount()));
+        return sb.toString();
+    }
+
+    static String percentileName(double p) {
+        String name = String.format(Locale.ROOT, "%.1f", p * 100);
+        return name.endsWith(".0") ? name.substring(0, name.length() - 2) : name;
+    }
+}
@@ -0,0 +1,110 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Merges the latency files saved by clients into one report.
+ *
+ * Use
+ * > java LatencyReport latency_*.hist
+ *
+ * For every method it prints the percentiles of each kind of time over
+ * all zones, then per zone, where zone 0 is the client cache. The
+ * turnaround times include the queries that were not answered, which
+ * are also shown on their own. The throughput is the number of answers
+ * divided by the time from the first client starting to the last one
+ * finishing.
+ */
+public class LatencyReport {
+    // "method zone kind" to the histogram of all files
+    private static final TreeMap<String, LatencyHistogram> histograms = new TreeMap<>();
+    private static long startMillis = Long.MAX_VALUE;
+    private static long endMillis = Long.MIN_VALUE;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.out.println("Usage: java LatencyReport file.hist...");
+            return;
+        }
+        for (String filename : args) {
+            load(filename);
+        }
+        double seconds = Math.max(1, endMillis - startMillis) / 1000.0;
+
+        long answers = 0;
+        long unansweredTotal = 0;
+        for (String method : LatencyRecorder.METHODS) {
+            TreeMap<Integer, LatencyHistogram[]> zones = new TreeMap<>();
+            LatencyHistogram[] all = newKinds();
+            for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+                String[] key = entry.getKey().split(" ");
+                if (!key[0].equals(method)) {
+                    continue;
+                }
+                int kind = indexOf(key[2]);
+                zones.computeIfAbsent(Integer.parseInt(key[1]), zone -> newKinds())[kind].add(entry.getValue());
+                all[kind].add(entry.getValue());
+            }
+            long unanswered = all[LatencyRecorder.UNANSWERED].getCount();
+            long count = all[LatencyRecorder.TURNAROUND].getCount() - unanswered;
+            if (count + unanswered == 0) {
+                continue;
+            }
+            answers += count;
+            unansweredTotal += unanswered;
+            System.out.printf(Locale.ROOT, "%n%s: %d answers, %.1f per second, %d unanswered%n",
+                    method, count, count / seconds, unanswered);
+            print("all zones", all);
+            for (Map.Entry<Integer, LatencyHistogram[]> zone : zones.entrySet()) {
+                print(zone.getKey() == LatencyRecorder.CACHE_ZONE ? "client cache" : "zone " + zone.getKey(), zone.getValue());
+            }
+        }
+        System.out.printf(Locale.ROOT, "%n%d files, %d answers in %.1f s, %.1f per second, %d unanswered%n",
+                args.length, answers, seconds, answers / seconds, unansweredTotal);
+    }
+
+    private static void print(String name, LatencyHistogram[] kinds) {
+        System.out.println("  " + name);
+        for (int kind = 0; kind < kinds.length; kind++) {
+            if (kinds[kind].getCount() > 0) {
+                System.out.printf("    %-10s  %s%n", LatencyRecorder.KINDS[kind], LatencyRecorder.describe(kinds[kind]));
+            }
+        }
+    }
+
+    private static void load(String filename) throws IOException {
+        try (BufferedReader br = new BufferedReader(new FileReader(filename))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                String[] fields = line.split(" ");
+                if (line.startsWith("#")) {
+                    startMillis = Math.min(startMillis, Long.parseLong(fields[1]));
+                    endMillis = Math.max(endMillis, Long.parseLong(fields[2]));
+                } else if (!line.isEmpty()) {
+                    histograms.computeIfAbsent(fields[0] + " " + fields[1] + " " + fields[2],
+                            key -> new LatencyHistogram()).add(LatencyHistogram.parse(fields, 3));
+                }
+            }
+        }
+    }
+
+    private static LatencyHistogram[] newKinds() {
+        LatencyHistogram[] kinds = new LatencyHistogram[LatencyRecorder.KINDS.length];
+        for (int i = 0; i < kinds.length; i++) {
+            kinds[i] = new LatencyHistogram();
+        }
+        return kinds;
+    }
+
+    private static int indexOf(String kind) {
+        for (int i = 0; i < LatencyRecorder.KINDS.length; i++) {
+            if (LatencyRecorder.KINDS[i].equals(kind)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Unknown kind of time " + kind);
+    }
+}
@@ -0,0 +1,144 @@
+import java.rmi.RemoteException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Routes queries on the client from a RoutingTable leased from the proxy.
+ *
+ * It stands in for the proxy stub, so the clients call getConnection on
+ * it as before. A query goes to the server the proxy's BalancingStrategy
+ * picks among its zone's candidates, counting the load hint from the
+ * table plus the queries this client sent there during the lease, just
+ * like the proxy counts the connections it hands out.
+ *
+ * Once half of a lease is used up a new table is fetched in the
+ * background. A lease that runs out before that is renewed before
+ * routing, so a client never routes from an expired table.
+ */
+class LeasedRouter implements GetConnection {
+    private final GetConnection proxy;
+    private final ExecutorService refresher = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "routing-table-refresh");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+    private volatile Lease lease;
+
+    LeasedRouter(GetConnection proxy) {
+        this.proxy = proxy;
+    }
+
+    @Override
+    public ConnectInfo getConnection(int zoneNumber) throws RemoteException {
+        Lease current = current();
+        if (current.used.incrementAndGet() > current.table.validForRequests / 2
+                || System.nanoTime() > current.renewAt) {
+            refreshInBackground();
+        }
+        // as the proxy does, so an out of range zone is not taken for another zone
+        int zone = Math.floorMod(zoneNumber - 1, current.table.candidates.length) + 1;
+        ConnectInfo server = current.route(zone);
+        if (server == null) {
+            // no server near the zone when the table was made
+            return proxy.getConnection(zoneNumber);
+        }
+        if (server.zone != zone) {
+            // the same delay the proxy adds for a server in another zone
+            try {
+                TimeUnit.MILLISECONDS.sleep(current.table.crossZoneDelayMillis);
+            } catch (InterruptedException e) {
+                System.err.println("sleeping thread interrupted");
+            }
+        }
+        return server;
+    }
+
+    /**
+     * Key affine routing needs the proxy's hash ring, so it is not leased
+     */
+    @Override
+    public ConnectInfo getConnection(int zoneNumber, String key) throws RemoteException {
+        return proxy.getConnection(zoneNumber, key);
+    }
+
+    @Override
+    public RoutingTable getRoutingTable() throws RemoteException {
+        return proxy.getRoutingTable();
+    }
+
+    private Lease current() throws RemoteException {
+        Lease current = lease;
+        if (current == null || current.expired()) {
+            synchronized (this) {
+                current = lease;
+                if (current == null || current.expired()) {
+                    current = new Lease(proxy.getRoutingTable());
+                    lease = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    private void refreshInBackground() {
+        if (!refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        refresher.execute(() -> {
+            try {
+                lease = new Lease(proxy.getRoutingTable());
+            } catch (RemoteException e) {
+                System.err.println("Could not refresh routing table: " + e);
+            } finally {
+                refreshing.set(false);
+            }
+        });
+    }
+
+    private static class Lease {
+        final RoutingTable table;
+        final BalancingStrategy strategy;
+        final long renewAt, expiresAt;
+        final AtomicInteger used = new AtomicInteger();
+        final AtomicIntegerArray assigned;
+
+        Lease(RoutingTable table) {
+            long now = System.nanoTime();
+            long validFor = TimeUnit.MILLISECONDS.toNanos(table.validForMillis);
+            this.table = table;
+            this.strategy = BalancingStrategy.create(table.strategy);
+            this.renewAt = now + validFor / 2;
+            this.expiresAt = now + validFor;
+            this.assigned = new AtomicIntegerArray(table.load.length);
+        }
+
+        boolean expired() {
+            return used.get() >= table.validForRequests || System.nanoTime() >= expiresAt;
+        }
+
+        /**
+         * @param zone a zone between 1 and the number of zones
+         * @return the server for the zone, or null if the table has none for it
+         */
+        ConnectInfo route(int zone) {
+            int[] candidates = table.candidates[zone - 1];
+            if (candidates.length == 0) {
+                return null;
+            }
+            int[] load = new int[candidates.length];
+            long[] serviceTimeNanos = new long[candidates.length];
+            for (int i = 0; i < candidates.length; i++) {
+                load[i] = table.load[candidates[i]] + assigned.get(candidates[i]);
+                serviceTimeNanos[i] = table.serviceTimeNanos[candidates[i]];
+            }
+            int chosen = candidates[strategy.choose(load, serviceTimeNanos, table.local[zone - 1])];
+            assigned.incrementAndGet(chosen);
+            return table.servers[chosen];
+        }
+    }
+}
@@ -0,0 +1,23 @@
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+/**
+ * Implemented by the proxy, so servers can register with it and push
+ * their load to it.
+ */
+public interface LoadListener extends Remote {
+
+    /**
+     * @param server the address and zone clients are sent to
+     * @param balancer the server's Balance object
+     */
+    void register(ConnectInfo server, BalancerIf balancer) throws RemoteException;
+
+    void deregister(String address) throws RemoteException;
+
+    /**
+     * @return false if the server is not registered, e.g. after the proxy
+     * removed it or was restarted
+     */
+    boolean reportLoad(LoadReport report) throws RemoteException;
+}
@@ -0,0 +1,55 @@
+import java.io.Serializable;
+
+/**
+ * The load of a server, pushed to the proxy by its Balance object.
+ */
+public class LoadReport implements Serializable {
+    private static final long serialVersionUID = 1L;
+    public final String address;
+    /* jobs waiting for a worker */
+    public final int queued;
+    /* jobs running on a worker */
+    public final int inFlight;
+    /* moving average of the run time of a job, in ns */
+    public final long serviceTimeNanos;
+    /* lookups in the server's caches since it started */
+    public final long cacheHits, cacheMisses;
+
+    LoadReport(String address, int queued, int inFlight, long serviceTimeNanos) {
+        this(address, queued, inFlight, serviceTimeNanos, 0, 0);
+    }
+
+    LoadReport(String address, int queued, int inFlight, long serviceTimeNanos, long cacheHits, long cacheMisses) {
+        this.address = address;
+        this.queued = queued;
+        this.inFlight = inFlight;
+        this.serviceTimeNanos = serviceTimeNanos;
+        this.cacheHits = cacheHits;
+        this.cacheMisses = cacheMisses;
+    }
+
+    /**
+     * @return the number of jobs the server has, waiting or running
+     */
+    int load() {
+        return queued + inFlight;
+    }
+
+    /**
+     * @return cache hits / lookups, or 0 before the first lookup
+     */
+    double hitRatio() {
+        long lookups = cacheHits + cacheMisses;
+        return lookups == 0 ? 0 : (double) cacheHits / lookups;
+    }
+
+    boolean sameLoad(LoadReport other) {
+        return other != null && queued == other.queued && inFlight == other.inFlight;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: queued=%d, inFlight=%d, serviceTime=%.1f ms, cache hits=%d, misses=%d, hit ratio=%.2f",
+                address, queued, inFlight, serviceTimeNanos / 1000000.0, cacheHits, cacheMisses, hitRatio());
+    }
+}
@@ -0,0 +1,272 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BiConsumer;
+import java.util.function.BinaryOperator;
+import java.util.function.Supplier;
+
+/**
+ * Zero-copy scanner over a memory mapped csv file.
+ *
+ * The file is mapped once, in regions that end on a line boundary, and
+ * every scan tokenizes the rows straight from the mapped buffers. No
+ * Strings are created unless a visitor asks for one through Row.field().
+ */
+class MappedCsvScanner {
+    // a single MappedByteBuffer can address at most 2GB
+    private static final long MAX_REGION = Integer.MAX_VALUE;
+
+    private final ArrayList<MappedByteBuffer> regions = new ArrayList<>();
+    // line aligned chunks for parallel scans, see split()
+    private Chunk[] chunks;
+
+    /**
+     * Called once for every row in the file. The Row is reused, so it
+     * is only valid during the call.
+     */
+    interface RowVisitor {
+        void visit(Row row);
+    }
+
+    MappedCsvScanner(String filename) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(filename, "r");
+             FileChannel channel = file.getChannel()) {
+            long size = channel.size();
+            long start = 0;
+            while (start < size) {
+                long end = Math.min(size, start + MAX_REGION);
+                if (end < size) {
+                    end = lastLineEnd(channel, start, end);
+                }
+                regions.add(channel.map(FileChannel.MapMode.READ_ONLY, start, end - start));
+                start = end;
+            }
+        }
+    }
+
+    /**
+     * @return the offset just after the last '\n' in [start, end)
+     */
+    private static long lastLineEnd(FileChannel channel, long start, long end) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(4096);
+        for (long pos = end; pos > start; ) {
+            long from = Math.max(start, pos - buf.capacity());
+            buf.clear().limit((int) (pos - from));
+            channel.read(buf, from);
+            for (int i = buf.position() - 1; i >= 0; i--) {
+                if (buf.get(i) == '\n') {
+                    return from + i + 1;
+                }
+            }
+            pos = from;
+        }
+        throw new IOException("Line longer than " + MAX_REGION + " bytes");
+    }
+
+    /**
+     * Streams every row of the file through visitor
+     */
+    void scan(RowVisitor visitor) {
+        Row row = new Row();
+        for (MappedByteBuffer region : regions) {
+            scan(region, 0, region.limit(), row, visitor);
+        }
+    }
+
+    /**
+     * Scans the file in line aligned chunks on pool. Every chunk is folded
+     * into its own partial result, and the partial results are merged.
+     * @param identity creates an empty partial result
+     * @param accumulator adds a row to a partial result
+     * @param combiner merges two partial results
+     * @return the merged result over every row in the file
+     */
+    <A> A scan(ForkJoinPool pool, Supplier<A> identity, BiConsumer<A, Row> accumulator,
+               BinaryOperator<A> combiner) {
+        Chunk[] split = split(pool.getParallelism() * 4);
+        return pool.invoke(new ChunkTask<>(split, 0, split.length, identity, accumulator, combiner));
+    }
+
+    /**
+     * Splits the regions into about n chunks, each starting at the beginning
+     * of a line. The split is cached, as it only depends on the file.
+     */
+    synchronized Chunk[] split(int n) {
+        if (chunks != null && chunks.length >= n) {
+            return chunks;
+        }
+        long size = 0;
+        for (MappedByteBuffer region : regions) {
+            size += region.limit();
+        }
+        long target = Math.max(1, size / n);
+        ArrayList<Chunk> list = new ArrayList<>();
+        for (MappedByteBuffer region : regions) {
+            int from = 0;
+            while (from < region.limit()) {
+                int to = (int) Math.min(region.limit(), from + target);
+                while (to < region.limit() && region.get(to - 1) != '\n') {
+                    to++;
+                }
+                list.add(new Chunk(region, from, to));
+                from = to;
+            }
+        }
+        chunks = list.toArray(new Chunk[0]);
+        return chunks;
+    }
+
+    /**
+     * The rows in buf[from, to)
+     */
+    static class Chunk {
+        final ByteBuffer buf;
+        final int from, to;
+
+        Chunk(ByteBuffer buf, int from, int to) {
+            this.buf = buf;
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    /**
+     * Folds chunks[lo, hi) by splitting the range in two until a single chunk is left
+     */
+    private static class ChunkTask<A> extends RecursiveTask<A> {
+        private static final long serialVersionUID = 1L;
+        private final Chunk[] chunks;
+        private final int lo, hi;
+        private final Supplier<A> identity;
+        private final BiConsumer<A, Row> accumulator;
+        private final BinaryOperator<A> combiner;
+
+        ChunkTask(Chunk[] chunks, int lo, int hi, Supplier<A> identity,
+                  BiConsumer<A, Row> accumulator, BinaryOperator<A> combiner) {
+            this.chunks = chunks;
+            this.lo = lo;
+            this.hi = hi;
+            this.identity = identity;
+            this.accumulator = accumulator;
+            this.combiner = combiner;
+        }
+
+        @Override
+        protected A compute() {
+            if (hi - lo <= 1) {
+                A partial = identity.get();
+                if (lo < hi) {
+                    Chunk c = chunks[lo];
+                    scan(c.buf, c.from, c.to, new Row(), row -> accumulator.accept(partial, row));
+                }
+                return partial;
+            }
+            int mid = (lo + hi) >>> 1;
+            ChunkTask<A> left = new ChunkTask<>(chunks, lo, mid, identity, accumulator, combiner);
+            left.fork();
+            A right = new ChunkTask<>(chunks, mid, hi, identity, accumulator, combiner).compute();
+            return combiner.apply(left.join(), right);
+        }
+    }
+
+    /**
+     * Tokenizes the rows in buf[from, to). from must be the start of a line.
+     * Only absolute gets are used, so several threads can scan the same buffer.
+     */
+    static void scan(ByteBuffer buf, int from, int to, Row row, RowVisitor visitor) {
+        row.buf = buf;
+        row.fields = 0;
+        int fieldStart = from;
+        for (int i = from; i < to; i++) {
+            byte b = buf.get(i);
+            if (b == ',') {
+                row.add(fieldStart, i);
+                fieldStart = i + 1;
+            } else if (b == '\n') {
+                row.add(fieldStart, i > fieldStart && buf.get(i - 1) == '\r' ? i - 1 : i);
+                visitor.visit(row);
+                row.fields = 0;
+                fieldStart = i + 1;
+            }
+        }
+        if (fieldStart < to) {
+            row.add(fieldStart, to);
+            visitor.visit(row);
+            row.fields = 0;
+        }
+    }
+
+    /**
+     * A tokenized row: field i spans buf[start[i], end[i])
+     */
+    static class Row {
+        private ByteBuffer buf;
+        private int[] start = new int[16];
+        private int[] end = new int[16];
+        private int fields;
+
+        private void add(int from, int to) {
+            if (fields == start.length) {
+                start = Arrays.copyOf(start, fields * 2);
+                end = Arrays.copyOf(end, fields * 2);
+            }
+            start[fields] = from;
+            end[fields++] = to;
+        }
+
+        int fields() {
+            return fields;
+        }
+
+        byte firstByte(int i) {
+            return start[i] < end[i] ? buf.get(start[i]) : 0;
+        }
+
+        /**
+         * Compares field i with value byte by byte
+         */
+        boolean fieldEquals(int i, byte[] value) {
+            if (end[i] - start[i] != value.length) {
+                return false;
+            }
+            for (int j = 0; j < value.length; j++) {
+                if (buf.get(start[i] + j) != value[j]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Parses field i as a non-negative int in place, ignoring surrounding spaces
+         */
+        int parseInt(int i) {
+            int value = 0;
+            for (int j = start[i]; j < end[i]; j++) {
+                byte b = buf.get(j);
+                if (b >= '0' && b <= '9') {
+                    value = value * 10 + (b - '0');
+                }
+            }
+            return value;
+        }
+
+        /**
+         * @return field i as a String. This allocates, so only use it on matching rows
+         */
+        String field(int i) {
+            byte[] bytes = new byte[end[i] - start[i]];
+            for (int j = 0; j < bytes.length; j++) {
+                bytes[j] = buf.get(start[i] + j);
+            }
+            return new String(bytes, StandardCharsets.US_ASCII);
+        }
+    }
+}
@@ -36,4 +36,22 @@ public class MusicProfile {
         return genre;
     }
 
+    /**
+     * @return a rough estimate of the heap size of this profile in bytes,
+     * used when the server caches are bounded in bytes
+     */
+    public int estimatedSize() {
+        int size = 40 + estimatedSize(musicId) + estimatedSize(genre);
+        if (artists != null) {
+            for (String artist : artists) {
+                size += 8 + estimatedSize(artist);
+            }
+        }
+        return size;
+    }
+
+    static int estimatedSize(String s) {
+        return s == null ? 0 : 56 + s.length();
+    }
+
 }
\ No newline at end of file
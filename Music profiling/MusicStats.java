@@ -1,5 +1,6 @@
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.List;
 
 public interface MusicStats extends Remote {
 
@@ -11,4 +12,17 @@ public interface MusicStats extends Remote {
 
     Payload getTopArtistsByUserGenre(String userID, String genre) throws RemoteException, InterruptedException;
 
+    /**
+     * Answers a single query, dropping it unanswered if its timeout passes
+     * before it is done
+     * @return the answer, or a Payload with a status saying why there is none
+     */
+    Payload run(Query query) throws RemoteException, InterruptedException;
+
+    /**
+     * Answers several queries in one call
+     * @return one Payload per query, in the same order
+     */
+    List<Payload> runBatch(List<Query> queries) throws RemoteException, InterruptedException;
+
 }
@@ -1,6 +1,7 @@
 import java.io.*;
 import java.util.*;
 
+import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
@@ -9,8 +10,12 @@ import java.util.regex.Pattern;
 import java.util.regex.Matcher;
 
 public class NaiveClient {
-    static Map<String, int[]> sumOfAllTimes;
+    static LatencyRecorder latencies;
+    static StubPool stubs;
+    static QuerySender sender;
     private static String FILENAME;
+    // the output file, written on a background thread
+    static ResultSink sink;
 
     private NaiveClient() {}
 
@@ -22,25 +27,52 @@ public class NaiveClient {
                 FILENAME = "naive_server_" + args[0] + ".txt";
             }
 
-            sumOfAllTimes = new HashMap<>();
+            latencies = new LatencyRecorder();
+            sink = new ResultSink(FILENAME);
             try {
 
                 Registry proxyRegistry = LocateRegistry.getRegistry();
                 GetConnection proxyStub = (GetConnection) proxyRegistry.lookup("Proxy");
+                // with -Dclient.routing=lease, servers are picked locally from a routing table leased from the proxy
+                if ("lease".equals(System.getProperty("client.routing"))) {
+                    proxyStub = new LeasedRouter(proxyStub);
+                }
+                stubs = new StubPool();
+                sender = new QuerySender(proxyStub, stubs);
                 ArrayList<String> queries = readQueries();
 
+                // with -Dclient.batchSize=N, queries are sent to the servers N at a time
+                int batchSize = Integer.getInteger("client.batchSize", 0);
+                QueryBatcher batcher = batchSize > 0 ? new QueryBatcher(proxyStub, stubs, batchSize, NaiveClient::handleResponse) : null;
+                // with -Dclient.inFlight=N, up to N queries are sent at once
+                int inFlight = Integer.getInteger("client.inFlight", 0);
+                if (inFlight > 0) {
+                    QueryPipeline pipeline = new QueryPipeline(proxyStub, stubs, inFlight, NaiveClient::handleResponse);
+                    for (String query : queries) {
+                        pipeline.submit(query);
+                    }
+                    pipeline.finish();
+                    writeAvgTimes();
+                    return;
+                }
+
                 for (String query : queries) {
-                    int zone = Integer.parseInt(query.substring(query.length() -1));
-                    ConnectInfo hostServer = proxyStub.getConnection(zone);
-                    Registry serverRegistry = LocateRegistry.getRegistry();
-                    MusicStats serverStub = (MusicStats) serverRegistry.lookup(hostServer.address);
-                    passQuery(query, serverStub, hostServer.zone);
+                    if (batcher != null) {
+                        batcher.add(query);
+                        continue;
+                    }
+                    passQuery(query);
+                }
+                if (batcher != null) {
+                    batcher.flush();
                 }
                 writeAvgTimes();
 
             } catch (Exception e) {
                 System.err.println("Client exception: " + e);
                 e.printStackTrace();
+            } finally {
+                sink.close();
             }
     }
 
@@ -48,7 +80,7 @@ public class NaiveClient {
      * Read queries from file and returns them as ArrayList<String>.
      * No argument is required, but assumes you have a txt file with queries saved
      * as "queries.txt" in the same directory.
-     * @return ArrayList<String> of lines contained in file
+     * @return ArrayList<String> of the query lines in the file, skipping lines that are not MusicStats queries
      */
     private static ArrayList<String> readQueries() {
         System.out.println("Reading queries...");
@@ -58,6 +90,10 @@ public class NaiveClient {
         try {
             BufferedReader br = new BufferedReader(new FileReader("naiveQueries.txt"));
             while ((line = br.readLine()) != null) {
+                if (Query.parse(line) == null) {
+                    System.err.println("Skipping a line that is not a MusicStats query: " + line);
+                    continue;
+                }
                 list.add(line);
             }
         }
@@ -68,34 +104,41 @@ public class NaiveClient {
     }
 
     /**
-     * Passes a query to a provided stub and sends results to output writing.
+     * Sends a query to the server assigned by the proxy and sends results to output writing.
      * @param query: a line in a query file
-     * @param stub: a stub of an interface from a server
      */
-    private static void passQuery(String query, MusicStats stub, int zone) throws RemoteException, InterruptedException {
+    private static void passQuery(String query)
+            throws RemoteException, NotBoundException, InterruptedException {
+        QuerySender.Response response = sender.send(query);
+        handleResponse(query, response.payload, new double[] {response.turnaround, 0, 0}, response.server.zone);
+    }
+
+    /**
+     * Adds the times of a response to the averages and writes it to the output file.
+     * @param query: a line in a query file
+     * @param response: the answer from the server
+     * @param runtimes: turnaround time, execution and waiting time are filled in from response
+     * @param zone: the zone of the server
+     */
+    static void handleResponse(String query, Payload response, double[] runtimes, int zone) {
         String method = getMethod(query);
         String[] arguments = getArguments(query);
         String musicID, userID;
-        Payload response;
-        double[] runtimes = new double[3];
-        int[] sumTimes;
 
-        long start = System.nanoTime();
+        if (!response.isOk()) {
+            latencies.recordUnanswered(method, runtimes[0], zone);
+            writeUnanswered(query, response, runtimes[0], zone);
+            return;
+        }
+
+        runtimes[1] = response.executionTime / 1000000.0;
+        runtimes[2] = response.waitingTime / 1000000.0;
+
+        latencies.recordResponse(method, runtimes, zone);
+
         switch (method) {
             case "getTimesPlayed":
                 musicID = arguments[0];
-                response = stub.getTimesPlayed(musicID);
-                runtimes[0] = (System.nanoTime() - start) / 1000000.0;
-                runtimes[1] = response.executionTime / 1000000.0;
-                runtimes[2] = response.waitingTime / 1000000.0;
-
-                //sumTimes = [numCalls, sumTurnaround, sumExecution, sumWaiting]
-                sumTimes = sumOfAllTimes.getOrDefault(method, new int[4]);
-                sumTimes[0] ++;
-                sumTimes[1] += runtimes[0];
-                sumTimes[2] += runtimes[1];
-                sumTimes[3] += runtimes[2];
-                sumOfAllTimes.put(method, sumTimes);
 
                 writeTimesPlayed(musicID, response.timesPlayed, runtimes, zone);
                 break;
@@ -103,34 +146,12 @@ public class NaiveClient {
             case "getTimesPlayedByUser":
                 musicID = arguments[0];
                 userID = arguments[1];
-                response = stub.getTimesPlayedByUser(musicID, userID);
-                runtimes[0] = (System.nanoTime() - start) / 1000000.0;
-                runtimes[1] = response.executionTime / 1000000.0;
-                runtimes[2] = response.waitingTime / 1000000.0;
-
-                sumTimes = sumOfAllTimes.getOrDefault(method, new int[4]);
-                sumTimes[0] ++;
-                sumTimes[1] += runtimes[0];
-                sumTimes[2] += runtimes[1];
-                sumTimes[3] += runtimes[2];
-                sumOfAllTimes.put(method, sumTimes);
 
                 writeTimesPlayedByUser(musicID, response.timesPlayed, userID, runtimes, zone);
                 break;
 
             case "getTopThreeMusicByUser":
                 userID = arguments[0];
-                response = stub.getTopThreeMusicByUser(userID);
-                runtimes[0] = (System.nanoTime() - start) / 1000000.0;
-                runtimes[1] = response.executionTime / 1000000.0;
-                runtimes[2] = response.waitingTime / 1000000.0;
-
-                sumTimes = sumOfAllTimes.getOrDefault(method, new int[4]);
-                sumTimes[0] ++;
-                sumTimes[1] += runtimes[0];
-                sumTimes[2] += runtimes[1];
-                sumTimes[3] += runtimes[2];
-                sumOfAllTimes.put(method, sumTimes);
 
                 writeTopThreeMusicByUser(userID, response.topThree, runtimes, zone);
                 break;
@@ -138,17 +159,6 @@ public class NaiveClient {
             case "getTopArtistsByUserGenre":
                 userID = arguments[0];
                 String genre = arguments[1];
-                response = stub.getTopArtistsByUserGenre(userID, genre);
-                runtimes[0] = (System.nanoTime() - start) / 1000000.0;
-                runtimes[1] = response.executionTime / 1000000.0;
-                runtimes[2] = response.waitingTime / 1000000.0;
-
-                sumTimes = sumOfAllTimes.getOrDefault(method, new int[4]);
-                sumTimes[0] ++;
-                sumTimes[1] += runtimes[0];
-                sumTimes[2] += runtimes[1];
-                sumTimes[3] += runtimes[2];
-                sumOfAllTimes.put(method, sumTimes);
 
                 writeTopArtistsByUserGenre(genre, userID, response.topThree, runtimes, zone);
                 break;
@@ -185,6 +195,20 @@ public class NaiveClient {
         return method;
     }
 
+    /**
+     * Writes a query the server did not answer to output file, e.g. because it was busy
+     * @param query: a line in a query file
+     * @param response: says why there is no answer
+     * @param turnaround: time until the client gave up, in ms
+     * @param zone: the zone of the last server tried
+     */
+    public static void writeUnanswered(String query, Payload response, double turnaround, int zone) {
+        StringBuilder record = new StringBuilder();
+        record.append(query + " was not answered: " + response.statusName() + ".");
+        record.append("\n\t(turnaround time: " + turnaround + " ms, last tried Server " + zone + ")\n");
+        sink.write(record.toString());
+    }
+
     /**
      * Writes the result of invocations to output file
      * @param musicID: represents a song
@@ -193,20 +217,12 @@ public class NaiveClient {
      * @param zone: the zone of a server
      */
     public static void writeTimesPlayed(String musicID, int timesPlayed, double[] runtimes, int zone) {
-        File file = new File(FILENAME);
-        try {
-            FileWriter fw = new FileWriter(file, true);
-            BufferedWriter bf = new BufferedWriter(fw);
-            bf.write("Music " + musicID + " was played " + timesPlayed + " times.");
-            bf.write("\n\t(turnaround time: " + runtimes[0] + " ms, execution time: " +
-                runtimes[1] + " ms, waiting time: " + runtimes[2] + " ms, processed by Server "
-                + zone + ")\n");
-            bf.close();
-            fw.close();
-
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        StringBuilder record = new StringBuilder();
+        record.append("Music " + musicID + " was played " + timesPlayed + " times.");
+        record.append("\n\t(turnaround time: " + runtimes[0] + " ms, execution time: " +
+            runtimes[1] + " ms, waiting time: " + runtimes[2] + " ms, processed by Server "
+            + zone + ")\n");
+        sink.write(record.toString());
     }
 
     /**
@@ -218,21 +234,13 @@ public class NaiveClient {
      * @param zone: the zone of a server
      */
     public static void writeTimesPlayedByUser(String musicID, int timesPlayed, String userID, double[] runtimes, int zone) {
-        File file = new File(FILENAME);
-        try {
-            FileWriter fw = new FileWriter(file, true);
-            BufferedWriter bf = new BufferedWriter(fw);
-            bf.write("Music " + musicID + " was played " + timesPlayed + " times by user "
-                + userID + ".");
-            bf.write("\n\t(turnaround time: " + runtimes[0] + " ms, execution time: " +
-                runtimes[1] + " ms, waiting time: " + runtimes[2] + " ms, processed by Server "
-                + zone + ")\n");
-            bf.close();
-            fw.close();
-
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        StringBuilder record = new StringBuilder();
+        record.append("Music " + musicID + " was played " + timesPlayed + " times by user "
+            + userID + ".");
+        record.append("\n\t(turnaround time: " + runtimes[0] + " ms, execution time: " +
+            runtimes[1] + " ms, waiting time: " + runtimes[2] + " ms, processed by Server "
+            + zone + ")\n");
+        sink.write(record.toString());
     }
 
     /**
@@ -243,21 +251,13 @@ public class NaiveClient {
      * @param zone: the zone of a server
      */
     public static void writeTopThreeMusicByUser(String userID, List<String> topMusic, double[] runtimes, int zone) {
-        File file = new File(FILENAME);
-        try {
-            FileWriter fw = new FileWriter(file, true);
-            BufferedWriter bf = new BufferedWriter(fw);
-            bf.write("Top three musics for user " + userID + " were " + topMusic.get(0)
-                + ", " + topMusic.get(1) + ", " + topMusic.get(2) + ".");
-            bf.write("\n\t(turnaround time: " + runtimes[0] + " ms, execution time: " +
-                runtimes[1] + " ms, waiting time: " + runtimes[2] + " ms, processed by Server "
-                + zone + ")\n");
-            bf.close();
-            fw.close();
-
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        StringBuilder record = new StringBuilder();
+        record.append("Top three musics for user " + userID + " were "
+            + String.join(", ", topMusic) + ".");
+        record.append("\n\t(turnaround time: " + runtimes[0] + " ms, execution time: " +
+            runtimes[1] + " ms, waiting time: " + runtimes[2] + " ms, processed by Server "
+            + zone + ")\n");
+        sink.write(record.toString());
     }
 
     /**
@@ -269,46 +269,27 @@ public class NaiveClient {
      * @param zone: the zone of a server
      */
     public static void writeTopArtistsByUserGenre(String genre, String userID, List<String> topArtists, double[] runtimes, int zone) {
-        File file = new File(FILENAME);
-        try {
-            FileWriter fw = new FileWriter(file, true);
-            BufferedWriter bf = new BufferedWriter(fw);
-            bf.write("Top three artists for genre " + genre + " and user " + userID + " were ");
-            StringBuilder arts = new StringBuilder();
-            for (String artist : topArtists) {
-                arts.append(artist).append(", ");
-            }
-            bf.write(arts.substring(0, arts.length() - 2) + ".");
-            bf.write("\n\t(turnaround time: " + runtimes[0] + " ms, execution time: " +
-                runtimes[1] + " ms, waiting time: " + runtimes[2] + " ms, processed by Server "
-                + zone + ")\n");
-            bf.close();
-            fw.close();
-
-        } catch (IOException e) {
-            e.printStackTrace();
+        StringBuilder record = new StringBuilder();
+        record.append("Top three artists for genre " + genre + " and user " + userID + " were ");
+        StringBuilder arts = new StringBuilder();
+        for (String artist : topArtists) {
+            arts.append(artist).append(", ");
         }
+        record.append(arts.substring(0, arts.length() - 2) + ".");
+        record.append("\n\t(turnaround time: " + runtimes[0] + " ms, execution time: " +
+            runtimes[1] + " ms, waiting time: " + runtimes[2] + " ms, processed by Server "
+            + zone + ")\n");
+        sink.write(record.toString());
     }
 
     /**
-     * Calculates and writes the average time measurements of every method call
-     * to output file
+     * Writes the latency percentiles of every method to output file, and saves
+     * the latencies next to it for LatencyReport, e.g. as latency_server_cache_1.hist
      */
     public static void writeAvgTimes() {
-        File file = new File(FILENAME);
+        sink.write(latencies.summary());
         try {
-            FileWriter fw = new FileWriter(file, true);
-            BufferedWriter bf = new BufferedWriter(fw);
-            for (String method : sumOfAllTimes.keySet()) {
-                int[] times = sumOfAllTimes.get(method);
-                bf.write("\nAverage time used for method '" + method + "()' is:");
-                bf.write("\n\t\tTurnaround: " + times[1]/times[0] + " ms");
-                bf.write("\n\t\tExecution: " + times[2]/times[0] + " ms");
-                bf.write("\n\t\tWaiting: " + times[3]/times[0] + " ms\n");
-            }
-            bf.close();
-            fw.close();
-
+            latencies.save("latency_" + FILENAME.replace(".txt", ".hist"));
         } catch (IOException e) {
             e.printStackTrace();
         }
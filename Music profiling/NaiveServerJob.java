@@ -1,23 +1,22 @@
-import java.io.BufferedReader;
-import java.io.FileReader;
-import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.TimeUnit;
-import java.util.stream.Stream;
 import java.util.concurrent.*;
 
 class NaiveServerJob<T> implements Callable<T> {
     int type;
     String arg1, arg2;
     long executionTimeStart, waitingTimeStart;
+    QueryEngine engine;
+    List<Query> batch;
 
     /**
      * Constructor
      */
-    NaiveServerJob(int t, String s1, String s2, long ws) {
+    NaiveServerJob(int t, String s1, String s2, QueryEngine e, long ws) {
         this.type = t;
         this.arg1 = s1;
         this.arg2 = s2;
+        this.engine = e;
         this.waitingTimeStart = ws;
     }
 
@@ -28,9 +27,9 @@ class NaiveServerJob<T> implements Callable<T> {
      * @param s1 is the String argument for these jobs
      * T should be declared to be Integer or List<String> corresponding to type
      */
-    static <T> NaiveServerJob<T> createServerJob(int type, String s1, long ws) {
+    static <T> NaiveServerJob<T> createServerJob(int type, String s1, QueryEngine e, long ws) {
         if (type == 1 || type == 3) {
-            return new NaiveServerJob<>(type, s1, null, ws);
+            return new NaiveServerJob<>(type, s1, null, e, ws);
         } else {
             System.err.println("Error: invalid type for server job!");
             return null;
@@ -42,18 +41,28 @@ class NaiveServerJob<T> implements Callable<T> {
      * This one is used for getTimesPlayedByUser and
      * getTopArtistsByUserGenre
      */
-    static <T> NaiveServerJob<T> createServerJob(int type, String s1, String s2, long ws) {
+    static <T> NaiveServerJob<T> createServerJob(int type, String s1, String s2, QueryEngine e, long ws) {
         if (type == 2 || type == 4) {
-            return new NaiveServerJob<>(type, s1, s2, ws);
+            return new NaiveServerJob<>(type, s1, s2, e, ws);
         } else {
             System.err.println("Error: invalid type for server job!");
             return null;
         }
     }
 
+    /**
+     * Factory for batch jobs (type = 5), which answer several queries at once
+     * T should be declared to be List<Payload>
+     */
+    static <T> NaiveServerJob<T> createBatchJob(List<Query> queries, QueryEngine e, long ws) {
+        NaiveServerJob<T> job = new NaiveServerJob<>(5, null, null, e, ws);
+        job.batch = queries;
+        return job;
+    }
+
     @Override
     public T call() throws InterruptedException {
-        Payload result = null;
+        Object result = null;
         /* select the correct job, and dispatch */
         switch (type) {
             case 1 :
@@ -68,6 +77,9 @@ class NaiveServerJob<T> implements Callable<T> {
             case 4 :
                 result = getTopArtistsByUserGenre(arg1, arg2);
                 break;
+            case 5 :
+                result = runBatch(batch);
+                break;
             default :
                 System.err.println("What?");
         }
@@ -81,14 +93,8 @@ class NaiveServerJob<T> implements Callable<T> {
      */
     private Payload getTimesPlayed(String musicID) throws InterruptedException {
         executionTimeStart = System.nanoTime();
-        ArrayList<String> list = readDataset();
-        int timesPlayed = 0;
-        for (String s : list) {
-            if (s.contains(musicID)) {
-                String[] line = s.split(",");
-                timesPlayed += Integer.parseInt(line[line.length - 1].trim());
-            }
-        }
+        TimeUnit.MILLISECONDS.sleep(80);
+        int timesPlayed = engine.getTimesPlayed(musicID);
         Payload payload = new Payload(timesPlayed,
                 null,
                 System.nanoTime() - executionTimeStart,
@@ -106,14 +112,8 @@ class NaiveServerJob<T> implements Callable<T> {
      */
     private Payload getTimesPlayedByUser(String musicID, String userID) throws InterruptedException {
         executionTimeStart = System.nanoTime();
-        ArrayList<String> list = readDataset();
-        int timesPlayedByUser = 0;
-        for (String s : list) {
-            if (s.contains(musicID) && s.contains(userID)) {
-                String[] line = s.split(",");
-                timesPlayedByUser += Integer.parseInt(line[line.length - 1].trim());
-            }
-        }
+        TimeUnit.MILLISECONDS.sleep(80);
+        int timesPlayedByUser = engine.getTimesPlayedByUser(musicID, userID);
         Payload payload = new Payload(timesPlayedByUser,
                 null,
                 System.nanoTime() - executionTimeStart,
@@ -122,6 +122,25 @@ class NaiveServerJob<T> implements Callable<T> {
         return payload;
     }
 
+    /**
+     * Answers every query in the batch with a single call to the engine
+     * @param queries the batch
+     * @return one Payload per query, in the same order
+     * @throws InterruptedException in case of connectivity issues
+     */
+    private ArrayList<Payload> runBatch(List<Query> queries) throws InterruptedException {
+        executionTimeStart = System.nanoTime();
+        TimeUnit.MILLISECONDS.sleep(80);
+        Object[] answers = engine.answerAll(queries);
+        long executionTime = System.nanoTime() - executionTimeStart;
+        ArrayList<Payload> payloads = new ArrayList<>(answers.length);
+        for (Object answer : answers) {
+            payloads.add(Payload.forAnswer(answer, executionTime, executionTimeStart - waitingTimeStart));
+        }
+        resetTimers();
+        return payloads;
+    }
+
     private void resetTimers() {
         executionTimeStart = 0L;
         waitingTimeStart = 0L;
@@ -134,22 +153,8 @@ class NaiveServerJob<T> implements Callable<T> {
      */
     private Payload getTopThreeMusicByUser(String userID) throws InterruptedException {
         executionTimeStart = System.nanoTime();
-        ArrayList<String> list = readDataset();
-        HashMap<String, Integer> map = new HashMap<>();
-        ArrayList<String> topThreeList = new ArrayList<>();
-        for (String s : list) {
-            if (s.contains(userID)) {
-                String[] line = s.split(",");
-                String musicId = line[0];
-                Integer numberOfTimesPlayed = Integer.parseInt(line[line.length - 1].trim());
-                map.put(musicId, numberOfTimesPlayed);
-            }
-        }
-        Stream<Map.Entry<String, Integer>> topEntries = map.entrySet()
-                .stream()
-                .sorted(Map.Entry.<String, Integer>comparingByValue().reversed())
-                .limit(3);
-        topEntries.forEach(e -> topThreeList.add(e.getKey()));
+        TimeUnit.MILLISECONDS.sleep(80);
+        ArrayList<String> topThreeList = engine.getTopMusicByUser(userID, Dataset.TOP_K);
         Payload payload = new Payload(0,
                 topThreeList,
                 System.nanoTime() - executionTimeStart,
@@ -166,27 +171,8 @@ class NaiveServerJob<T> implements Callable<T> {
      */
     private Payload getTopArtistsByUserGenre(String userID, String genre) throws InterruptedException {
         executionTimeStart = System.nanoTime();
-        ArrayList<String> list = readDataset();
-        HashMap<String, Integer> map = new HashMap<>();
-        ArrayList<String> topThreeList = new ArrayList<>();
-
-        for (String s : list) {
-            if (s.contains(userID) && s.contains(genre)) {
-                String[] line = s.split(",");
-                int numberOfTimesPlayed = Integer.parseInt(line[line.length - 1].trim());
-                for (String a : line) {
-                    if(a.startsWith("A")) {
-                        map.merge(a, numberOfTimesPlayed, Integer::sum);
-                    }
-                }
-            }
-        }
-
-        Stream<Map.Entry<String, Integer>> topEntries = map.entrySet()
-                .stream()
-                .sorted(Map.Entry.<String, Integer>comparingByValue().reversed())
-                .limit(3);
-        topEntries.forEach(e -> topThreeList.add(e.getKey()));
+        TimeUnit.MILLISECONDS.sleep(80);
+        ArrayList<String> topThreeList = engine.getTopArtistsByUserGenre(userID, genre, Dataset.TOP_K);
         Payload payload = new Payload(0,
                 topThreeList,
                 System.nanoTime() - executionTimeStart,
@@ -194,24 +180,4 @@ class NaiveServerJob<T> implements Callable<T> {
         resetTimers();
         return payload;
     }
-
-    /**
-     * @return the dataset from file and return it as a list of strings
-     */
-    private ArrayList<String> readDataset() throws InterruptedException {
-        TimeUnit.MILLISECONDS.sleep(80);
-        System.out.println("Reading data...");
-        String line;
-        ArrayList<String> list = new ArrayList<>();
-        try {
-            BufferedReader br = new BufferedReader(new FileReader("dataset.csv"));
-            while ((line = br.readLine()) != null) {
-                list.add(line);
-            }
-        }
-        catch (IOException e) {
-            e.printStackTrace();
-        }
-        return list;
-    }
-}
\ No newline at end of file
+}
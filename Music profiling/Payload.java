@@ -1,11 +1,36 @@
 import java.util.ArrayList;
-import java.io.Serializable;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+/**
+ * The answer to a query, with the times the server spent on it.
+ *
+ * It is written in the compact WireFormat rather than with default
+ * serialization: one header byte with the status and whether there is
+ * a top three list, then varints, then the list as packed ids.
+ */
+public class Payload implements Externalizable {
+    /* whether the server answered, see status */
+    static final int OK = 0;
+    static final int BUSY = 1;      // the server's queue was full, try another one after retryAfterMillis
+    static final int EXPIRED = 2;   // the deadline of the query passed before it was answered
+    static final int FAILED = 3;    // the job threw an exception
 
-public class Payload implements Serializable {
     public int timesPlayed;             // This field contains the answer for both int methods
     public ArrayList<String> topThree;  // This field contains the answer for both ArrayList<String> methods
     public long executionTime;
     public long waitingTime;
+    public int status = OK;
+    public long retryAfterMillis;
+
+    private static final int STATUS_BITS = 0x03, HAS_TOP_THREE = 0x04;
+
+    /**
+     * For Externalizable only
+     */
+    public Payload() {}
 
     Payload(int timesPlayed, ArrayList<String> topThree, long executionTime,
             long waitingTime) {
@@ -15,4 +40,87 @@ public class Payload implements Serializable {
         this.waitingTime = waitingTime;
     }
 
+    /**
+     * @param answer an Integer or an ArrayList<String>, see Query.answer()
+     */
+    @SuppressWarnings("unchecked")
+    static Payload forAnswer(Object answer, long executionTime, long waitingTime) {
+        if (answer instanceof Integer) {
+            return new Payload((Integer) answer, null, executionTime, waitingTime);
+        }
+        return new Payload(0, (ArrayList<String>) answer, executionTime, waitingTime);
+    }
+
+    /**
+     * @param retryAfterMillis how long the server expects to stay busy
+     */
+    static Payload busy(long retryAfterMillis) {
+        Payload payload = withStatus(BUSY);
+        payload.retryAfterMillis = retryAfterMillis;
+        return payload;
+    }
+
+    static Payload expired() {
+        return withStatus(EXPIRED);
+    }
+
+    static Payload failed() {
+        return withStatus(FAILED);
+    }
+
+    private static Payload withStatus(int status) {
+        Payload payload = new Payload(0, null, 0, 0);
+        payload.status = status;
+        return payload;
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        out.writeByte(status | (topThree != null ? HAS_TOP_THREE : 0));
+        WireFormat.writeVarInt(out, timesPlayed);
+        WireFormat.writeVarLong(out, executionTime);
+        WireFormat.writeVarLong(out, waitingTime);
+        if (status == BUSY) {
+            WireFormat.writeVarLong(out, retryAfterMillis);
+        }
+        if (topThree != null) {
+            WireFormat.writeIds(out, topThree);
+        }
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException {
+        int header = in.readByte();
+        status = header & STATUS_BITS;
+        timesPlayed = WireFormat.readVarInt(in);
+        executionTime = WireFormat.readVarLong(in);
+        waitingTime = WireFormat.readVarLong(in);
+        if (status == BUSY) {
+            retryAfterMillis = WireFormat.readVarLong(in);
+        }
+        if ((header & HAS_TOP_THREE) != 0) {
+            topThree = WireFormat.readIds(in);
+        }
+    }
+
+    boolean isOk() {
+        return status == OK;
+    }
+
+    /**
+     * @return why the query was not answered, for the output files
+     */
+    String statusName() {
+        switch (status) {
+            case BUSY :
+                return "server busy";
+            case EXPIRED :
+                return "deadline expired";
+            case FAILED :
+                return "job failed";
+            default :
+                return "ok";
+        }
+    }
+
 }
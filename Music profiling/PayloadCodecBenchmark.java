@@ -0,0 +1,143 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Compares the size and the encode and decode time of the four MusicStats
+ * responses in default Java serialization and in the WireFormat of Payload.
+ *
+ * Use
+ * > java PayloadCodecBenchmark [iterations]
+ * which defaults to 200000 iterations per response.
+ *
+ * Every response is written to its own object stream, as RMI does for
+ * every call, so the sizes include the class descriptor. The default
+ * serialization is measured on Legacy, a copy of the Serializable Payload.
+ * Its descriptor carries the longer class name, which is taken off its size.
+ */
+public class PayloadCodecBenchmark {
+    // results are written here so the JIT can not drop the work
+    static volatile long blackhole;
+
+    /**
+     * The fields of Payload, in default serialization
+     */
+    static class Legacy implements Serializable {
+        private static final long serialVersionUID = 1L;
+        int timesPlayed;
+        ArrayList<String> topThree;
+        long executionTime;
+        long waitingTime;
+        int status;
+        long retryAfterMillis;
+
+        Legacy(Payload payload) {
+            this.timesPlayed = payload.timesPlayed;
+            this.topThree = payload.topThree;
+            this.executionTime = payload.executionTime;
+            this.waitingTime = payload.waitingTime;
+            this.status = payload.status;
+            this.retryAfterMillis = payload.retryAfterMillis;
+        }
+    }
+
+    private static final int NAME_OVERHEAD = Legacy.class.getName().length() - Payload.class.getName().length();
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        ArrayList<String> topMusic = new ArrayList<>(Arrays.asList("MTRMfUKEH2", "MgVv5S8y7W", "MF4b3OBnCf"));
+        ArrayList<String> topArtists = new ArrayList<>(Arrays.asList("AecIZCUCQs", "AF8yN8x5Tw", "A0BqFSIXbg"));
+        String[] names = {"getTimesPlayed", "getTimesPlayedByUser",
+                "getTopThreeMusicByUser", "getTopArtistsByUserGenre"};
+        // typical times from the output files, in ns
+        Payload[] responses = {
+                new Payload(768, null, 81250000, 2300000),
+                new Payload(13, null, 79800000, 150000),
+                new Payload(0, topMusic, 84100000, 41000000),
+                new Payload(0, topArtists, 90500000, 600000)
+        };
+
+        System.out.printf("%d iterations%n", iterations);
+        System.out.printf("%-26s %9s %9s %12s %12s %12s %12s%n", "response",
+                "bytes", "bytes", "encode ns", "encode ns", "decode ns", "decode ns");
+        System.out.printf("%-26s %9s %9s %12s %12s %12s %12s%n", "",
+                "before", "after", "before", "after", "before", "after");
+        for (int i = 0; i < responses.length; i++) {
+            report(names[i], new Legacy(responses[i]), responses[i], iterations);
+        }
+
+        // a batch of every kind of response, as runBatch returns it
+        ArrayList<Legacy> legacyBatch = new ArrayList<>();
+        ArrayList<Payload> batch = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            for (Payload response : responses) {
+                legacyBatch.add(new Legacy(response));
+                batch.add(response);
+            }
+        }
+        report("runBatch of 40", legacyBatch, batch, iterations / 20);
+
+        // check that the WireFormat gives back what was written
+        for (Payload response : responses) {
+            Payload copy = (Payload) decode(encode(response));
+            if (copy.timesPlayed != response.timesPlayed || copy.executionTime != response.executionTime
+                    || copy.waitingTime != response.waitingTime || copy.status != response.status
+                    || (response.topThree != null && !response.topThree.equals(copy.topThree))) {
+                System.out.println("FAILED: " + Arrays.toString(encode(response)) + " did not decode");
+                System.exit(1);
+            }
+        }
+    }
+
+    private static void report(String name, Object before, Object after, int iterations) throws Exception {
+        int legacyBytes = encode(before).length - NAME_OVERHEAD;
+        int bytes = encode(after).length;
+        System.out.printf("%-26s %9d %9d %12.0f %12.0f %12.0f %12.0f%n", name, legacyBytes, bytes,
+                encodeTime(before, iterations), encodeTime(after, iterations),
+                decodeTime(encode(before), iterations), decodeTime(encode(after), iterations));
+    }
+
+    /**
+     * @return the average ns per encoding, after an equal number of warm up runs
+     */
+    private static double encodeTime(Object value, int iterations) throws IOException {
+        for (int i = 0; i < iterations; i++) {
+            blackhole += encode(value).length;
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            blackhole += encode(value).length;
+        }
+        return (System.nanoTime() - start) / (double) iterations;
+    }
+
+    private static double decodeTime(byte[] bytes, int iterations) throws Exception {
+        for (int i = 0; i < iterations; i++) {
+            blackhole += decode(bytes).hashCode();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            blackhole += decode(bytes).hashCode();
+        }
+        return (System.nanoTime() - start) / (double) iterations;
+    }
+
+    private static byte[] encode(Object value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(value);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Object decode(byte[] bytes) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return in.readObject();
+        }
+    }
+}
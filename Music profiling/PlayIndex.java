@@ -0,0 +1,44 @@
+import java.util.HashMap;
+
+/**
+ * Pre-aggregated play counts, built once from a Dataset.
+ *
+ * Answers getTimesPlayed and getTimesPlayedByUser with a point lookup
+ * instead of a scan over every row.
+ */
+class PlayIndex {
+    // total plays, indexed by music id
+    private final int[] totalPlays;
+    // (user id, music id) -> plays
+    private final HashMap<Long, Integer> userPlays;
+
+    PlayIndex(Dataset dataset) {
+        totalPlays = new int[dataset.musicIds.size()];
+        userPlays = new HashMap<>(dataset.rows * 4 / 3 + 1);
+        for (int r = 0; r < dataset.rows; r++) {
+            totalPlays[dataset.music[r]] += dataset.plays[r];
+            userPlays.merge(key(dataset.user[r], dataset.music[r]), dataset.plays[r], Integer::sum);
+        }
+    }
+
+    /**
+     * @param musicId dictionary id of a song
+     * @return the number of times the song has been played
+     */
+    int getTotalPlays(int musicId) {
+        return totalPlays[musicId];
+    }
+
+    /**
+     * @param userId dictionary id of a user
+     * @param musicId dictionary id of a song
+     * @return the number of times the user played the song
+     */
+    int getPlays(int userId, int musicId) {
+        return userPlays.getOrDefault(key(userId, musicId), 0);
+    }
+
+    static long key(int high, int low) {
+        return ((long) high << 32) | (low & 0xffffffffL);
+    }
+}
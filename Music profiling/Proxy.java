@@ -2,8 +2,17 @@ import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
 import java.rmi.RemoteException;
-import java.rmi.NotBoundException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.lang.Math;
 
 /**
@@ -16,26 +25,100 @@ import java.lang.Math;
  *
  * Its remote method gives the client
  * an address and a port number
+ *
+ * Servers register with it through
+ * LoadListener when they start, and
+ * push their load to it from then on,
+ * so it never has to ask them while
+ * assigning. A server that stops
+ * reporting is removed. A zone can
+ * have any number of servers
+ *
+ * getConnection is called by many RMI
+ * threads at once, so the shared state
+ * is kept in atomic counters
  */
-class Proxy implements GetConnection {
-    private final int NUM_SERVERS = 5;
-    private final int PORT_NUMBER_OFFSET = 2000;
-    ConnectInfo[] serverAddrs;
-    int[] connectionCount;
+class Proxy implements GetConnection, LoadListener {
+    /* clients are in zones 1 to NUM_ZONES, each zone neighbours the zones next to it */
+    static final int NUM_ZONES = Integer.getInteger("proxy.zones", 5);
 
     static final int PROXY_PORT_NUMBER = 2005;
+    /* a server with this many connections counts as overloaded */
+    static final int MAX_LOAD = 10;
+
+    /* how long a leased routing table is valid */
+    static final int LEASE_REQUESTS = Integer.getInteger("proxy.leaseRequests", 100);
+    static final long LEASE_MILLIS = Long.getLong("proxy.leaseMillis", 1000);
+
+    /* the simulated delay of assigning a server in another zone */
+    static final long CROSS_ZONE_DELAY_MILLIS = Long.getLong("proxy.crossZoneDelayMillis", 90);
+    /* set proxy.quiet to stop logging every assignment */
+    static final boolean VERBOSE = !Boolean.getBoolean("proxy.quiet");
+
+    /* a server that has not reported for this long is removed */
+    static final long SERVER_TIMEOUT_MILLIS = Long.getLong("proxy.serverTimeoutMillis", 3000);
+
+    /* with key affine routing, a server takes at most this factor times the average load */
+    static final double HASH_LOAD_FACTOR = Double.parseDouble(System.getProperty("proxy.hashLoadFactor", "1.25"));
+    /* how often the load and cache hit ratio of every server is printed, 0 for never */
+    static final long STATS_MILLIS = Long.getLong("proxy.statsMillis", 0);
 
-    /* remote objects */
-    BalancerIf[] servers;
+    /* the registered servers by address */
+    final ConcurrentHashMap<String, RegisteredServer> servers = new ConcurrentHashMap<>();
+    /* the registered servers of each zone, replaced as a whole when a server joins or leaves */
+    private volatile RegisteredServer[][] zones;
+    /* every server on a hash ring, rebuilt with zones */
+    private volatile ServerRing ring = new ServerRing(new RegisteredServer[0]);
+    final LongAdder crossZoneAssignments = new LongAdder();
+
+    /* picks a server among the zone and its neighbours, see BalancingStrategy */
+    final BalancingStrategy strategy;
+    /* leased with the routing tables, so clients choose the same way */
+    final String strategyName = System.getProperty("proxy.strategy", "threshold");
 
     Proxy() throws RemoteException {
-        this.serverAddrs = new ConnectInfo[NUM_SERVERS];
-        this.connectionCount = new int[NUM_SERVERS];
-        servers = new BalancerIf[NUM_SERVERS];
+        if (!(HASH_LOAD_FACTOR >= 1)) {
+            // below 1 the servers near a zone could all be over capacity
+            throw new IllegalArgumentException("proxy.hashLoadFactor must be at least 1, not " + HASH_LOAD_FACTOR);
+        }
+        this.zones = new RegisteredServer[NUM_ZONES][0];
+        this.strategy = BalancingStrategy.create(strategyName);
+    }
+
+    /**
+     * A server known to the proxy, and its load
+     */
+    static class RegisteredServer {
+        final ConnectInfo info;
+        final BalancerIf balancer;
+        /* jobs the server has: its last reported load plus the connections assigned since */
+        final AtomicInteger connectionCount = new AtomicInteger();
+        /* connections assigned since the server registered, never reset */
+        final LongAdder assignments = new LongAdder();
+        volatile LoadReport lastReport;
+        volatile long serviceTimeNanos;
+        volatile long lastHeard = System.nanoTime();
 
-        for (int i = 0; i < 5; i++){
-          int j = i + 2000;
-          serverAddrs[i] = new ConnectInfo("Server" + j, j, i+1);
+        RegisteredServer(ConnectInfo info, BalancerIf balancer) {
+            this.info = info;
+            this.balancer = balancer;
+        }
+    }
+
+    /**
+     * Servers on a hash ring
+     */
+    static class ServerRing {
+        final RegisteredServer[] servers;
+        final HashRing ring;
+
+        ServerRing(RegisteredServer[] servers) {
+            this.servers = servers;
+            String[] addresses = new String[servers.length];
+            for (int i = 0; i < servers.length; i++) {
+                addresses[i] = servers[i].info.address;
+            }
+            this.ring = new HashRing(addresses);
         }
     }
 
@@ -44,19 +127,15 @@ class Proxy implements GetConnection {
      * Should all the different hosts be started
      * through a main method, or some other way?
      *
-     * TODO:
-     * create a more sophisticated solution
-     * so that the proxy server still stays
-     * up if one or more servers goes down, as well
-     * as being able to start the proxy without all
-     * servers already being up.
+     * The proxy can be started before or after
+     * the servers, they register when they find it.
      */
     public static void main(String[] args) throws RemoteException{
-        // first initialize remote objects
         Proxy lb = new Proxy();
-        lb.init();
+        lb.startHealthCheck();
+        Runtime.getRuntime().addShutdownHook(new Thread(lb::printStats));
 
-        // then host proxys remote interface
+        // host proxys remote interfaces, the servers find it by the same name
         String name = "Proxy";
         try {
             GetConnection stub =
@@ -81,120 +160,314 @@ class Proxy implements GetConnection {
     }
 
     /**
-     * Initializes the remote objects
+     * Removes the servers that have not reported for SERVER_TIMEOUT_MILLIS
      */
-    private void init() {
-        String name = "b" + (PORT_NUMBER_OFFSET + 6);
-        for (int i = 0; i < NUM_SERVERS; i++) {
-            try {
-                Registry reg = LocateRegistry.getRegistry();
-                servers[i] = (BalancerIf) reg.lookup(name);
-            } catch (RemoteException | NotBoundException e) {
-                System.err.println("Failure");
-                e.printStackTrace();
+    void startHealthCheck() {
+        ScheduledExecutorService healthCheck = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "health-check");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = Math.max(1, SERVER_TIMEOUT_MILLIS / 2);
+        healthCheck.scheduleWithFixedDelay(this::removeSilentServers, interval, interval, TimeUnit.MILLISECONDS);
+        if (STATS_MILLIS > 0) {
+            healthCheck.scheduleWithFixedDelay(this::printStats, STATS_MILLIS, STATS_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Prints the connections assigned to every server and the hit ratio
+     * of its caches from its last report
+     */
+    void printStats() {
+        long hits = 0, misses = 0;
+        System.out.println("[ PROXY ]: server stats");
+        for (RegisteredServer server : servers.values()) {
+            LoadReport report = server.lastReport;
+            System.out.printf("  %s (zone %d): %d assigned, %s%n", server.info.address, server.info.zone,
+                    server.assignments.sum(), report == null ? "no report yet" : report.toString());
+            if (report != null) {
+                hits += report.cacheHits;
+                misses += report.cacheMisses;
+            }
+        }
+        System.out.printf("  all servers: cache hit ratio %.2f, %d cross zone assignments%n",
+                hits + misses == 0 ? 0 : (double) hits / (hits + misses), crossZoneAssignments.sum());
+    }
+
+    private void removeSilentServers() {
+        long now = System.nanoTime();
+        for (RegisteredServer server : servers.values()) {
+            if (now - server.lastHeard > TimeUnit.MILLISECONDS.toNanos(SERVER_TIMEOUT_MILLIS)
+                    && servers.remove(server.info.address, server)) {
+                System.out.println("[ PROXY ]: " + server.info.address + " stopped reporting, removed it");
+                rebuildZones();
             }
         }
     }
 
     /**
-     * @param zoneNumber a number between 1-5 inclusive
+     * @param zoneNumber a number between 1 and NUM_ZONES inclusive
      * @return a ConnectInfo object, which is the address of
      * the allocated server
      */
     @Override
     public ConnectInfo getConnection(int zoneNumber) throws RemoteException {
-        int index, leftIndex, rightIndex;
-        // the modulos here is wrong
-        index = Math.floorMod(zoneNumber-1, NUM_SERVERS);
-        leftIndex = Math.floorMod(index-1, NUM_SERVERS);
-        rightIndex = Math.floorMod(index+1, NUM_SERVERS);
-
-        int serverIndex = checkFreeServer(zoneNumber-1, leftIndex, rightIndex);
-        System.out.printf("[ PROXY ]: zoneNumber = %d, ServerIndex = %d\n", zoneNumber, serverIndex);
-        if (serverIndex != -1) {
-            if (serverIndex != (zoneNumber-1)) {
-                System.out.println("[ PROXY ]: Assigning a server in different time-zone!");
-                try {
-                    TimeUnit.MILLISECONDS.sleep(90);
-                } catch (Exception e) {
-                    System.err.println("sleeping thread interrupted");
-                }
-            }
-            connectionCount[serverIndex]++;
-            return serverAddrs[serverIndex];
-        }
+        int zone = Math.floorMod(zoneNumber-1, NUM_ZONES) + 1;
 
-        try {
-            updateServerInfo(leftIndex, index, rightIndex);
-        } catch (Exception e) {
-            e.printStackTrace();
-            System.exit(1);
+        return connect(zoneNumber, zone, assign(zone));
+    }
+
+    /**
+     * Like getConnection(zoneNumber), but picks the server on a hash ring,
+     * so every query with the same key goes to the same server and finds
+     * its answer in that server's cache.
+     * The ring is walked from the key to the first server near the zone
+     * that has less than HASH_LOAD_FACTOR times the average load of the
+     * servers near the zone, so a popular key cannot overload its server.
+     * The servers in the client's own zone are tried first. If none of
+     * them has room, one may still take as many jobs more as it runs in
+     * CROSS_ZONE_DELAY_MILLIS, as until then waiting for it is faster
+     * than going to a neighbour. A cache hit saves too little to be worth
+     * the cross zone delay.
+     */
+    @Override
+    public ConnectInfo getConnection(int zoneNumber, String key) throws RemoteException {
+        int zone = Math.floorMod(zoneNumber-1, NUM_ZONES) + 1;
+        return connect(zoneNumber, zone, assignByKey(zone, key));
+    }
+
+    private ConnectInfo connect(int zoneNumber, int zone, RegisteredServer server) {
+        if (VERBOSE) {
+            System.out.printf("[ PROXY ]: zoneNumber = %d, Server = %s\n", zoneNumber, server.info.address);
         }
-        /* check again for free servers after updating */
-        int r = checkFreeServer(zoneNumber-1, leftIndex, rightIndex);
-        if (r != -1 && r != (zoneNumber-1)) {
-            System.out.println("[ PROXY ]: Assigning a server in different time-zone!");
+        if (server.info.zone != zone) {
+            if (VERBOSE) {
+                System.out.println("[ PROXY ]: Assigning a server in different time-zone!");
+            }
+            crossZoneAssignments.increment();
             try {
-                TimeUnit.MILLISECONDS.sleep(90);
+                TimeUnit.MILLISECONDS.sleep(CROSS_ZONE_DELAY_MILLIS);
             } catch (Exception e) {
                 System.err.println("sleeping thread interrupted");
             }
         }
-        /* if all are still overloaded then just add to the original target */
-        if (r == -1) {
-            connectionCount[zoneNumber-1]++;
-            return serverAddrs[zoneNumber-1];
-        } else {
-            connectionCount[r]++;
-            return serverAddrs[r];
+        return server.info;
+    }
+
+    /**
+     * Lets the strategy choose a server from a snapshot of the load, and
+     * counts the connection only if the server's load is still the one
+     * the choice was based on. Otherwise another thread got there first,
+     * and the choice is made again on the new load.
+     * @param zone the client's zone
+     * @return the assigned server
+     */
+    RegisteredServer assign(int zone) throws RemoteException {
+        while (true) {
+            RegisteredServer[] candidates = candidates(zone);
+            int[] load = new int[candidates.length];
+            long[] serviceTimeNanos = new long[candidates.length];
+            int local = 0;
+            for (int i = 0; i < candidates.length; i++) {
+                load[i] = candidates[i].connectionCount.get();
+                serviceTimeNanos[i] = candidates[i].serviceTimeNanos;
+                if (candidates[i].info.zone == zone) {
+                    local++;
+                }
+            }
+            int chosen = strategy.choose(load, serviceTimeNanos, local);
+            RegisteredServer server = candidates[chosen];
+            if (server.connectionCount.compareAndSet(load[chosen], load[chosen] + 1)) {
+                server.assignments.increment();
+                return server;
+            }
         }
     }
 
     /**
-     * Get updated info from 3 servers about their
-     * workload
-     * @param a, b, c : these are the index values of the servers
-     * into serverAddrs[], as well as connectionCount[]
-     * b should be the target server, a is left neighbor,
-     * c is right neighbor
-     *
-     * TODO: a more sophisticated scheme can be used here:
-     * to immediately select one of the servers if they have
-     * room, rather than getting updated information from
-     * all 3 servers as there is network latency.
+     * Like assign, but the server is picked from the zone's hash ring
      */
-    private void updateServerInfo(int a, int b, int c) throws Exception {
+    RegisteredServer assignByKey(int zone, String key) throws RemoteException {
+        while (true) {
+            ServerRing current = ring;
+            RegisteredServer[] servers = current.servers;
+            boolean[] local = new boolean[servers.length];
+            boolean[] nearby = new boolean[servers.length];
+            int[] load = new int[servers.length];
+            // the jobs a server in the zone can have on top of the capacity before
+            // waiting for it takes longer than the cross zone delay
+            double[] crossZoneJobs = new double[servers.length];
+            int candidates = 0;
+            long total = 0;
+            for (int i = 0; i < servers.length; i++) {
+                int distance = Math.floorMod(servers[i].info.zone - zone, NUM_ZONES);
+                local[i] = distance == 0;
+                crossZoneJobs[i] = (double) TimeUnit.MILLISECONDS.toNanos(CROSS_ZONE_DELAY_MILLIS)
+                        / Math.max(servers[i].serviceTimeNanos, TimeUnit.MILLISECONDS.toNanos(1));
+                nearby[i] = distance <= 1 || distance == NUM_ZONES - 1;
+                load[i] = servers[i].connectionCount.get();
+                if (nearby[i]) {
+                    candidates++;
+                    total += load[i];
+                }
+            }
+            if (candidates == 0) {
+                // no server near the zone, like candidates() fall back to every server
+                Arrays.fill(nearby, true);
+                candidates = servers.length;
+                total = Arrays.stream(load).asLongStream().sum();
+            }
+            if (candidates == 0) {
+                throw new RemoteException("No servers are registered");
+            }
+            // the loads add up to less than candidates * capacity, so some candidate is below it
+            double capacity = Math.ceil(HASH_LOAD_FACTOR * (total + 1) / candidates);
+            int chosen = current.ring.lookup(key, i -> local[i] && load[i] < capacity);
+            if (chosen == -1) {
+                chosen = current.ring.lookup(key, i -> local[i] && load[i] < capacity + crossZoneJobs[i]);
+            }
+            if (chosen == -1) {
+                chosen = current.ring.lookup(key, i -> nearby[i] && load[i] < capacity);
+            }
+            if (chosen == -1) {
+                // no server near the zone has room on the ring, assign by load alone
+                return assign(zone);
+            }
+            RegisteredServer server = servers[chosen];
+            if (server.connectionCount.compareAndSet(load[chosen], load[chosen] + 1)) {
+                server.assignments.increment();
+                return server;
+            }
+        }
+    }
 
-        // get updated info from server's remote BalancerIf
-        // then update connectionCount[]
-        System.err.println("\n===========================");
-        System.err.printf("Getting load from servers in zones: %d, %d and %d\n", a+1, b+1, c+1);
-        System.err.println("\n===========================");
-        connectionCount[a] = servers[a].getLoad();
-        connectionCount[b] = servers[b].getLoad();
-        connectionCount[c] = servers[c].getLoad();
+    /**
+     * @return the servers in zone, then the servers in its neighbouring
+     * zones, or every server if there are none of those
+     */
+    private RegisteredServer[] candidates(int zone) throws RemoteException {
+        RegisteredServer[][] current = zones;
+        // with less than three zones, a neighbour can be the zone itself
+        LinkedHashSet<Integer> nearby = new LinkedHashSet<>(Arrays.asList(
+                zone, Math.floorMod(zone - 2, NUM_ZONES) + 1, Math.floorMod(zone, NUM_ZONES) + 1));
+        ArrayList<RegisteredServer> candidates = new ArrayList<>();
+        for (int z : nearby) {
+            candidates.addAll(Arrays.asList(current[z - 1]));
+        }
+        if (candidates.isEmpty()) {
+            for (RegisteredServer[] servers : current) {
+                candidates.addAll(Arrays.asList(servers));
+            }
+        }
+        if (candidates.isEmpty()) {
+            throw new RemoteException("No servers are registered");
+        }
+        return candidates.toArray(new RegisteredServer[0]);
+    }
 
+    /**
+     * Called by a server when it starts, or when the proxy did not know
+     * it on a report. Registering again replaces the earlier registration.
+     */
+    @Override
+    public void register(ConnectInfo server, BalancerIf balancer) {
+        if (server.zone < 1 || server.zone > NUM_ZONES) {
+            throw new IllegalArgumentException("Zone " + server.zone + " is not between 1 and " + NUM_ZONES);
+        }
+        servers.put(server.address, new RegisteredServer(server, balancer));
+        rebuildZones();
+        System.out.println("[ PROXY ]: " + server.address + " joined zone " + server.zone);
     }
 
     /**
-     * zoneNumber is the target zone
-     * leftIndex is zoneNumber-1, rightIndex is zoneNumber+1
-     *
-     * returns server index value, or -1 if all are overloaded
+     * Called by a server when it shuts down
      */
-    private int checkFreeServer(int zoneNumber, int leftIndex, int rightIndex) {
-        // first try server in same zone as client
-        if (connectionCount[zoneNumber] < 10) {
-            return zoneNumber;
+    @Override
+    public void deregister(String address) {
+        if (servers.remove(address) != null) {
+            rebuildZones();
+            System.out.println("[ PROXY ]: " + address + " left");
         }
+    }
 
-        if (connectionCount[leftIndex] < 10 && connectionCount[rightIndex] < 10) {
-            return (connectionCount[leftIndex] < connectionCount[rightIndex] ? leftIndex : rightIndex);
-        } else {
-            if (connectionCount[leftIndex] < 10) return leftIndex;
-            if (connectionCount[rightIndex] < 10) return rightIndex;
+    private synchronized void rebuildZones() {
+        ArrayList<ArrayList<RegisteredServer>> byZone = new ArrayList<>();
+        for (int i = 0; i < NUM_ZONES; i++) {
+            byZone.add(new ArrayList<>());
         }
-        return -1;
+        for (RegisteredServer server : servers.values()) {
+            byZone.get(server.info.zone - 1).add(server);
+        }
+        RegisteredServer[][] rebuilt = new RegisteredServer[NUM_ZONES][];
+        for (int i = 0; i < NUM_ZONES; i++) {
+            byZone.get(i).sort(Comparator.comparing(server -> server.info.address));
+            rebuilt[i] = byZone.get(i).toArray(new RegisteredServer[0]);
+        }
+        zones = rebuilt;
+        ring = new ServerRing(servers.values().toArray(new RegisteredServer[0]));
     }
 
+    /**
+     * Called by the servers when their load changes, and every
+     * few intervals otherwise.
+     * The connections assigned since the last report are
+     * part of the reported load, so it replaces the count.
+     * @return false if the server is not registered
+     */
+    @Override
+    public boolean reportLoad(LoadReport report) {
+        RegisteredServer server = servers.get(report.address);
+        if (server == null) {
+            return false;
+        }
+        server.lastReport = report;
+        server.serviceTimeNanos = report.serviceTimeNanos;
+        server.connectionCount.set(report.load());
+        server.lastHeard = System.nanoTime();
+        return true;
+    }
+
+    /**
+     * Builds a routing table from the current load of every server.
+     * The candidates of a zone are the ones getConnection chooses from,
+     * and the table names the strategy it chooses with.
+     */
+    @Override
+    public RoutingTable getRoutingTable() throws RemoteException {
+        RegisteredServer[] all = servers.values().toArray(new RegisteredServer[0]);
+        List<RegisteredServer> indexes = Arrays.asList(all);
+        ConnectInfo[] infos = new ConnectInfo[all.length];
+        int[] load = new int[all.length];
+        long[] serviceTimeNanos = new long[all.length];
+        for (int i = 0; i < all.length; i++) {
+            infos[i] = all[i].info;
+            load[i] = all[i].connectionCount.get();
+            serviceTimeNanos[i] = all[i].serviceTimeNanos;
+        }
+        int[][] candidates = new int[NUM_ZONES][];
+        int[] local = new int[NUM_ZONES];
+        for (int zone = 1; zone <= NUM_ZONES; zone++) {
+            ArrayList<Integer> nearby = new ArrayList<>();
+            if (all.length > 0) {
+                // the zone's own servers come first, as in assign
+                for (RegisteredServer server : candidates(zone)) {
+                    int i = indexes.indexOf(server);
+                    // -1 if it registered while building the table
+                    if (i != -1) {
+                        nearby.add(i);
+                        if (infos[i].zone == zone) {
+                            local[zone - 1]++;
+                        }
+                    }
+                }
+            }
+            candidates[zone - 1] = nearby.stream().mapToInt(Integer::intValue).toArray();
+        }
+        if (VERBOSE) {
+            System.out.println("[ PROXY ]: Leasing routing table");
+        }
+        return new RoutingTable(infos, load, serviceTimeNanos, candidates, local, strategyName,
+                CROSS_ZONE_DELAY_MILLIS, LEASE_REQUESTS, LEASE_MILLIS);
+    }
 }
@@ -0,0 +1,103 @@
+import java.rmi.RemoteException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Calls getConnection on a local Proxy from many threads at once, and
+ * checks that no assignment was lost.
+ *
+ * Usage
+ * > java ProxyStress [threads] [calls per thread] [strategy]
+ *
+ * The proxy is not exported, so this measures its own state handling
+ * rather than RMI. The cross zone delay and the logging are turned off.
+ *
+ * The first round has no load reports, so the connection counts must add
+ * up to the number of calls. The second round has a thread pushing load
+ * reports at the same time, which reset the counts; the assignment
+ * totals must still add up.
+ */
+public class ProxyStress {
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int calls = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+        System.setProperty("proxy.strategy", args.length > 2 ? args[2] : "leastOutstanding");
+        System.setProperty("proxy.crossZoneDelayMillis", "0");
+        System.setProperty("proxy.quiet", "true");
+
+        boolean ok = round(threads, calls, false);
+        ok &= round(threads, calls, true);
+        System.out.println(ok ? "OK" : "FAILED");
+        if (!ok) {
+            System.exit(1);
+        }
+    }
+
+    private static boolean round(int threads, int calls, boolean withReports) throws Exception {
+        Proxy proxy = new Proxy();
+        for (int i = 0; i < 5; i++) {
+            proxy.register(new ConnectInfo("Server" + (2000 + i), 2000 + i, i + 1), null);
+        }
+        long expected = (long) threads * calls;
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        LongAdder errors = new LongAdder();
+
+        for (int t = 0; t < threads; t++) {
+            new Thread(() -> {
+                try {
+                    start.await();
+                    for (int i = 0; i < calls; i++) {
+                        proxy.getConnection(ThreadLocalRandom.current().nextInt(1, 6));
+                    }
+                } catch (InterruptedException | RemoteException e) {
+                    errors.increment();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        Thread reporter = new Thread(() -> {
+            while (running.get()) {
+                int i = ThreadLocalRandom.current().nextInt(5);
+                proxy.reportLoad(new LoadReport("Server" + (2000 + i),
+                        ThreadLocalRandom.current().nextInt(20), 1, 80000000L));
+            }
+        });
+        if (withReports) {
+            reporter.start();
+        }
+
+        long startTime = System.nanoTime();
+        start.countDown();
+        done.await();
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        running.set(false);
+        reporter.join();
+
+        long assigned = 0;
+        long counted = 0;
+        for (Proxy.RegisteredServer server : proxy.servers.values()) {
+            assigned += server.assignments.sum();
+            counted += server.connectionCount.get();
+        }
+        System.out.printf("%s: %d calls in %.2f s (%.0f/s), %d cross zone%n",
+                withReports ? "with load reports" : "without load reports",
+                expected, seconds, expected / seconds, proxy.crossZoneAssignments.sum());
+
+        boolean ok = errors.sum() == 0 && assigned == expected;
+        if (assigned != expected) {
+            System.out.printf("  lost %d of %d assignments%n", expected - assigned, expected);
+        }
+        if (!withReports && counted != expected) {
+            System.out.printf("  connection counts add up to %d, expected %d%n", counted, expected);
+            ok = false;
+        }
+        return ok;
+    }
+}
@@ -0,0 +1,147 @@
+import java.io.Serializable;
+import java.rmi.RemoteException;
+
+/**
+ * A typed query, parsed from a line in a query file such as
+ *   getTimesPlayedByUser(MzaAB7gy3B,U27NI3dHo2) Zone:4
+ *
+ * The type numbers are the same as for the server jobs:
+ * 1 getTimesPlayed, 2 getTimesPlayedByUser, 3 getTopThreeMusicByUser
+ * and 4 getTopArtistsByUserGenre.
+ *
+ * A query can carry a timeout. The server drops it without answering
+ * once the timeout has passed since the server received it, as the
+ * client has given up on it by then.
+ */
+public class Query implements Serializable {
+    private static final long serialVersionUID = 1L;
+    public final int type;
+    public final String arg1, arg2;
+    // 0 for no timeout
+    public final long timeoutMillis;
+
+    Query(int type, String arg1, String arg2) {
+        this(type, arg1, arg2, 0);
+    }
+
+    Query(int type, String arg1, String arg2, long timeoutMillis) {
+        this.type = type;
+        this.arg1 = arg1;
+        this.arg2 = arg2;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * @return this query with a timeout, 0 for none
+     */
+    Query withTimeout(long timeoutMillis) {
+        return new Query(type, arg1, arg2, timeoutMillis);
+    }
+
+    /**
+     * @param line a line in a query file
+     * @return the query, or null if the method is unknown
+     */
+    static Query parse(String line) {
+        String[] arguments = Client.getArguments(line);
+        int type = typeOf(Client.getMethod(line));
+        if (type == 0) {
+            return null;
+        }
+        return new Query(type, arguments[0], arguments.length > 1 ? arguments[1] : null);
+    }
+
+    /**
+     * @return the type number of a MusicStats method, or 0 if it is unknown
+     */
+    static int typeOf(String method) {
+        switch (method) {
+            case "getTimesPlayed" :
+                return 1;
+            case "getTimesPlayedByUser" :
+                return 2;
+            case "getTopThreeMusicByUser" :
+                return 3;
+            case "getTopArtistsByUserGenre" :
+                return 4;
+            default :
+                return 0;
+        }
+    }
+
+    /**
+     * Queries come from the wire, so the server checks this before
+     * counting or running one
+     * @return whether the type is one of the four methods
+     */
+    boolean hasKnownType() {
+        return type >= 1 && type <= 4;
+    }
+
+    /**
+     * The servers cache a song's play count by musicID, and everything
+     * about a user, including their play count of a song, by userID
+     * @return the key the server caches the answer under
+     */
+    String routingKey() {
+        return type == 2 ? arg2 : arg1;
+    }
+
+    /**
+     * Asks proxy for a server for a line in a query file, by its zone and,
+     * with hash routing, its key
+     */
+    static ConnectInfo connect(GetConnection proxy, String line) throws RemoteException {
+        int zone = Integer.parseInt(line.substring(line.length() -1));
+        // with -Dclient.routing=hash, queries are routed by their key. Not read
+        // in a static field, as the rmiregistry loads this class too and may not read properties
+        if ("hash".equals(System.getProperty("client.routing"))) {
+            return proxy.getConnection(zone, parse(line).routingKey());
+        }
+        return proxy.getConnection(zone);
+    }
+
+    /**
+     * Calls the MusicStats method of this query on stub, or MusicStats.run
+     * if it has a timeout
+     */
+    Payload sendTo(MusicStats stub) throws RemoteException, InterruptedException {
+        if (timeoutMillis > 0) {
+            return stub.run(this);
+        }
+        switch (type) {
+            case 1 :
+                return stub.getTimesPlayed(arg1);
+            case 2 :
+                return stub.getTimesPlayedByUser(arg1, arg2);
+            case 3 :
+                return stub.getTopThreeMusicByUser(arg1);
+            default :
+                return stub.getTopArtistsByUserGenre(arg1, arg2);
+        }
+    }
+
+    /**
+     * Answers this query from engine
+     * @return an Integer for the count queries, an ArrayList<String> for the top lists
+     */
+    Object answer(QueryEngine engine) {
+        switch (type) {
+            case 1 :
+                return engine.getTimesPlayed(arg1);
+            case 2 :
+                return engine.getTimesPlayedByUser(arg1, arg2);
+            case 3 :
+                return engine.getTopMusicByUser(arg1, Dataset.TOP_K);
+            default :
+                return engine.getTopArtistsByUserGenre(arg1, arg2, Dataset.TOP_K);
+        }
+    }
+
+    @Override
+    public String toString() {
+        String[] methods = {"getTimesPlayed", "getTimesPlayedByUser",
+                "getTopThreeMusicByUser", "getTopArtistsByUserGenre"};
+        return methods[type - 1] + "(" + arg1 + (arg2 == null ? "" : "," + arg2) + ")";
+    }
+}
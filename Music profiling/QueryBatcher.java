@@ -0,0 +1,118 @@
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Collects queries and sends them with one MusicStats.runBatch call per server.
+ *
+ * When batchSize queries are pending, the proxy assigns a server to each
+ * of them as usual, and the queries assigned to the same server are sent
+ * together. The responses are handed on in the order the queries were added.
+ * Every query of a batch gets the time of its own proxy call and the
+ * round-trip time of its batch as its turnaround time. If the server is
+ * too busy for a batch, its queries are retried one at a time with a
+ * QuerySender. If a batch fails, its queries are handed on as failed.
+ */
+class QueryBatcher {
+    private final GetConnection proxy;
+    private final StubPool stubs;
+    private final QuerySender sender;
+    private final int batchSize;
+    private final ResponseHandler handler;
+    private final ArrayList<String> pending = new ArrayList<>();
+
+    QueryBatcher(GetConnection proxy, StubPool stubs, int batchSize, ResponseHandler handler) {
+        this.proxy = proxy;
+        this.stubs = stubs;
+        this.sender = new QuerySender(proxy, stubs);
+        this.batchSize = batchSize;
+        this.handler = handler;
+    }
+
+    /**
+     * @throws IllegalArgumentException if query is not a MusicStats query
+     */
+    void add(String query) throws RemoteException, NotBoundException, InterruptedException {
+        if (Query.parse(query) == null) {
+            throw new IllegalArgumentException("Not a MusicStats query: " + query);
+        }
+        pending.add(query);
+        if (pending.size() >= batchSize) {
+            flush();
+        }
+    }
+
+    /**
+     * Sends all pending queries. The queries of a batch that fails are
+     * handed on as failed, so the batches to other servers are not lost.
+     * @throws RemoteException if the proxy cannot be reached, the pending queries are dropped
+     */
+    void flush() throws RemoteException, NotBoundException, InterruptedException {
+        try {
+            send();
+        } finally {
+            pending.clear();
+        }
+    }
+
+    private void send() throws RemoteException, NotBoundException, InterruptedException {
+        int n = pending.size();
+        ConnectInfo[] servers = new ConnectInfo[n];
+        Payload[] responses = new Payload[n];
+        double[] turnaround = new double[n];
+        LinkedHashMap<String, ArrayList<Integer>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < n; i++) {
+            long start = System.nanoTime();
+            servers[i] = Query.connect(proxy, pending.get(i));
+            turnaround[i] = (System.nanoTime() - start) / 1000000.0;
+            groups.computeIfAbsent(servers[i].address, address -> new ArrayList<>()).add(i);
+        }
+
+        for (String address : groups.keySet()) {
+            List<Integer> group = groups.get(address);
+            ArrayList<Query> batch = new ArrayList<>(group.size());
+            for (int i : group) {
+                batch.add(Query.parse(pending.get(i)).withTimeout(QuerySender.TIMEOUT_MILLIS));
+            }
+
+            long start = System.nanoTime();
+            List<Payload> batchResponses;
+            try {
+                // a registry lookup is not part of the turnaround
+                stubs.get(address);
+                start = System.nanoTime();
+                batchResponses = stubs.call(address, stub -> stub.runBatch(batch));
+            } catch (RemoteException | NotBoundException e) {
+                System.err.println("Batch of " + batch.size() + " queries failed on " + address + ": " + e);
+                batchResponses = null;
+            }
+            double time = (System.nanoTime() - start) / 1000000.0;
+
+            boolean busy = batchResponses != null && batchResponses.get(0).status == Payload.BUSY;
+            for (int j = 0; j < group.size(); j++) {
+                int i = group.get(j);
+                turnaround[i] += time;
+                if (batchResponses == null) {
+                    responses[i] = Payload.failed();
+                } else if (busy) {
+                    try {
+                        QuerySender.Response response = sender.send(pending.get(i));
+                        responses[i] = response.payload;
+                        turnaround[i] += response.turnaround;
+                        servers[i] = response.server;
+                    } catch (RemoteException | NotBoundException e) {
+                        responses[i] = Payload.failed();
+                    }
+                } else {
+                    responses[i] = batchResponses.get(j);
+                }
+            }
+        }
+
+        for (int i = 0; i < n; i++) {
+            handler.handle(pending.get(i), responses[i], new double[] {turnaround[i], 0, 0}, servers[i].zone);
+        }
+    }
+}
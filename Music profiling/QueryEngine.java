@@ -0,0 +1,45 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Answers the four MusicStats queries against the dataset.
+ *
+ * Dataset keeps the whole file on the heap, ScanEngine streams it
+ * from a memory mapped file for every query.
+ */
+interface QueryEngine {
+
+    int getTimesPlayed(String musicID);
+
+    int getTimesPlayedByUser(String musicID, String userID);
+
+    ArrayList<String> getTopMusicByUser(String userID, int k);
+
+    ArrayList<String> getTopArtistsByUserGenre(String userID, String genre, int k);
+
+    /**
+     * Answers a batch of queries. Engines that scan the data override
+     * this to answer the whole batch in one pass.
+     * @return for each query an Integer or an ArrayList<String>, see Query.answer()
+     */
+    default Object[] answerAll(List<Query> queries) {
+        Object[] answers = new Object[queries.size()];
+        for (int i = 0; i < answers.length; i++) {
+            answers[i] = queries.get(i).answer(this);
+        }
+        return answers;
+    }
+
+    /**
+     * Use
+     * > java -Dmusicstats.engine=mapped ServerSimulator
+     * to stream dataset.csv from disk instead of loading it onto the heap.
+     * @return the engine selected by the musicstats.engine property
+     */
+    static QueryEngine create() {
+        if ("mapped".equals(System.getProperty("musicstats.engine"))) {
+            return ScanEngine.getInstance();
+        }
+        return Dataset.getInstance();
+    }
+}
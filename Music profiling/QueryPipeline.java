@@ -0,0 +1,83 @@
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Keeps up to inFlight queries running at once, each on its own
+ * (virtual, if available) thread.
+ *
+ * A query is sent the same way as by the sequential clients, with a
+ * QuerySender.
+ * The responses are handed on in the order the queries were submitted,
+ * on the thread that submits them, so the output file looks the same as
+ * with a sequential client. A slow query holds back the writing of the
+ * ones after it, and counts against the window until it is written.
+ */
+class QueryPipeline {
+    private final QuerySender sender;
+    private final int inFlight;
+    private final ResponseHandler handler;
+    private final ExecutorService executor;
+    private final ArrayDeque<CompletableFuture<Runnable>> results = new ArrayDeque<>();
+
+    QueryPipeline(GetConnection proxy, StubPool stubs, int inFlight, ResponseHandler handler) {
+        this.sender = new QuerySender(proxy, stubs);
+        this.inFlight = inFlight;
+        this.handler = handler;
+        this.executor = Server.newVirtualThreadExecutor();
+    }
+
+    /**
+     * Sends query to a server, waiting first if the window is full
+     */
+    void submit(String query) {
+        waitForWindow();
+        results.add(CompletableFuture.supplyAsync(() -> send(query), executor));
+        writeCompleted();
+    }
+
+    /**
+     * Queues output that needs no server, e.g. a client cache hit, behind
+     * the queries already submitted
+     */
+    void submit(Runnable output) {
+        waitForWindow();
+        results.add(CompletableFuture.completedFuture(output));
+        writeCompleted();
+    }
+
+    /**
+     * Waits for every submitted query and writes its response
+     */
+    void finish() {
+        while (!results.isEmpty()) {
+            results.poll().join().run();
+        }
+        executor.shutdown();
+    }
+
+    private void waitForWindow() {
+        while (results.size() >= inFlight) {
+            results.poll().join().run();
+        }
+    }
+
+    private void writeCompleted() {
+        while (!results.isEmpty() && results.peek().isDone()) {
+            results.poll().join().run();
+        }
+    }
+
+    /**
+     * @return the output of the query, run later on the submitting thread
+     */
+    private Runnable send(String query) {
+        try {
+            QuerySender.Response response = sender.send(query);
+            double[] runtimes = {response.turnaround, 0, 0};
+            return () -> handler.handle(query, response.payload, runtimes, response.server.zone);
+        } catch (Exception e) {
+            return () -> System.err.println("Query " + query + " failed: " + e);
+        }
+    }
+}
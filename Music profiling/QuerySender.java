@@ -0,0 +1,123 @@
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends single queries the way the clients do, asking the proxy for a
+ * server and calling it, and tries again when the server is too busy.
+ *
+ * A server that is busy, or that cannot be reached, is left alone for a
+ * while: the sender waits, then asks the proxy for a server again, which
+ * by then has usually moved the load elsewhere. A query the server failed
+ * to answer is not tried again, as it would fail the same way. The wait doubles with every try
+ * from BACKOFF_MILLIS, or is the server's own guess if that is longer,
+ * and is jittered by half either way so that clients turned away at the
+ * same time do not all come back at the same time.
+ *
+ * With -Dclient.timeoutMillis=N every query is sent with a deadline of
+ * N ms from its first try, so servers drop the queries the client has
+ * already given up on instead of running them. The waits between tries
+ * end at the deadline too.
+ */
+class QuerySender {
+    static final int RETRIES = Integer.getInteger("client.retries", 3);
+    static final long TIMEOUT_MILLIS = Long.getLong("client.timeoutMillis", 0);
+    private static final long BACKOFF_MILLIS = 20;
+
+    private final GetConnection proxy;
+    private final StubPool stubs;
+
+    QuerySender(GetConnection proxy, StubPool stubs) {
+        this.proxy = proxy;
+        this.stubs = stubs;
+    }
+
+    /**
+     * The answer to a query, and where and how fast it was answered
+     */
+    static class Response {
+        final Payload payload;
+        final ConnectInfo server;
+        // from the first proxy call to the answer, in ms, less any registry lookups of stubs
+        final double turnaround;
+
+        Response(Payload payload, ConnectInfo server, double turnaround) {
+            this.payload = payload;
+            this.server = server;
+            this.turnaround = turnaround;
+        }
+    }
+
+    /**
+     * @param line a line in a query file
+     * @return the answer, which is not ok if the query ran out of tries or time
+     * @throws RemoteException if the proxy cannot be reached, or the last try failed
+     * @throws IllegalArgumentException if line is not a MusicStats query
+     */
+    Response send(String line) throws RemoteException, NotBoundException, InterruptedException {
+        Query query = Query.parse(line);
+        if (query == null) {
+            throw new IllegalArgumentException("Not a MusicStats query: " + line);
+        }
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS);
+        ConnectInfo server = Query.connect(proxy, line);
+        // the turnaround is the proxy and server calls only, so registry lookups are taken off it
+        long lookupNanos = 0;
+
+        for (int attempt = 0; ; attempt++) {
+            Query attempted = query;
+            if (TIMEOUT_MILLIS > 0) {
+                long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (left <= 0) {
+                    return new Response(Payload.expired(), server, elapsedMillis(start, lookupNanos));
+                }
+                attempted = query.withTimeout(left);
+            }
+
+            long retryAfterMillis = 0;
+            try {
+                long lookupStart = System.nanoTime();
+                stubs.get(server.address);
+                lookupNanos += System.nanoTime() - lookupStart;
+                Payload payload = stubs.call(server.address, attempted::sendTo);
+                if (payload.status != Payload.BUSY || attempt >= RETRIES) {
+                    return new Response(payload, server, elapsedMillis(start, lookupNanos));
+                }
+                retryAfterMillis = payload.retryAfterMillis;
+            } catch (RemoteException e) {
+                if (attempt >= RETRIES) {
+                    throw e;
+                }
+            }
+
+            long wait = backoff(attempt, retryAfterMillis);
+            if (TIMEOUT_MILLIS > 0) {
+                long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (left <= 0) {
+                    return new Response(Payload.expired(), server, elapsedMillis(start, lookupNanos));
+                }
+                wait = Math.min(wait, left);
+            }
+            TimeUnit.MILLISECONDS.sleep(wait);
+            if (TIMEOUT_MILLIS > 0 && System.nanoTime() - deadline >= 0) {
+                // not worth asking the proxy, which may take the cross zone delay
+                return new Response(Payload.expired(), server, elapsedMillis(start, lookupNanos));
+            }
+            server = Query.connect(proxy, line);
+        }
+    }
+
+    /**
+     * @return how long to wait before try attempt + 1
+     */
+    static long backoff(int attempt, long retryAfterMillis) {
+        long wait = Math.max(retryAfterMillis, BACKOFF_MILLIS << Math.min(attempt, 10));
+        return wait / 2 + ThreadLocalRandom.current().nextLong(wait + 1);
+    }
+
+    private static double elapsedMillis(long start, long lookupNanos) {
+        return (System.nanoTime() - start - lookupNanos) / 1000000.0;
+    }
+}
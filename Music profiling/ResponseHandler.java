@@ -0,0 +1,11 @@
+/**
+ * Receives the response to a query sent by QueryBatcher or QueryPipeline.
+ * Called on the client's main thread, in the order the queries were read.
+ */
+interface ResponseHandler {
+    /**
+     * @param runtimes turnaround time, the execution and waiting time are filled in from response
+     * @param zone the zone of the server that answered
+     */
+    void handle(String query, Payload response, double[] runtimes, int zone);
+}
@@ -0,0 +1,116 @@
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Appends the records of a client's output file on a background thread,
+ * so the client does not open and close the file for every query.
+ *
+ * Records are written in the order they are handed in. They wait in a
+ * bounded queue, so a client that outruns the disk is slowed down instead
+ * of running out of memory. The writer flushes the file every
+ * FLUSH_RECORDS records, and at most FLUSH_MILLIS after a record arrives.
+ * close() writes everything still queued; it is also called on exit, in
+ * case the client stops without calling it.
+ */
+class ResultSink {
+    private static final int QUEUE_CAPACITY = 4096;
+    private static final int FLUSH_RECORDS = 256;
+    private static final long FLUSH_MILLIS = 200;
+    // put in the queue by close(), compared by identity
+    private static final String CLOSE = new String("");
+
+    private final String filename;
+    private final ArrayBlockingQueue<String> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private final Thread writer;
+
+    /**
+     * @param filename the file to append to
+     */
+    ResultSink(String filename) {
+        this.filename = filename;
+        this.writer = new Thread(this::run, "result-sink");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close));
+    }
+
+    /**
+     * Queues a record, waiting if the queue is full
+     * @param record one or more complete lines
+     */
+    void write(String record) {
+        if (closed.get()) {
+            System.err.println("Result written after the output was closed: " + record);
+            return;
+        }
+        enqueue(record);
+    }
+
+    /**
+     * Writes everything queued and closes the file
+     */
+    void close() {
+        if (closed.compareAndSet(false, true)) {
+            enqueue(CLOSE);
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            System.err.println("Interrupted while closing " + filename);
+        }
+    }
+
+    private void enqueue(String record) {
+        try {
+            while (!queue.offer(record, FLUSH_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (!writer.isAlive()) {
+                    // the writer failed, and said so
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            System.err.println("Interrupted while writing to " + filename);
+        }
+    }
+
+    private void run() {
+        ArrayList<String> batch = new ArrayList<>(FLUSH_RECORDS);
+        try (BufferedWriter out = new BufferedWriter(new FileWriter(filename, true))) {
+            int unflushed = 0;
+            long lastFlush = System.nanoTime();
+            while (true) {
+                String first = queue.poll(FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+                batch.clear();
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, FLUSH_RECORDS);
+                }
+                for (String record : batch) {
+                    if (record == CLOSE) {
+                        return;
+                    }
+                    out.write(record);
+                    unflushed++;
+                }
+
+                long now = System.nanoTime();
+                if (unflushed >= FLUSH_RECORDS
+                        || unflushed > 0 && now - lastFlush >= TimeUnit.MILLISECONDS.toNanos(FLUSH_MILLIS)) {
+                    out.flush();
+                    unflushed = 0;
+                    lastFlush = now;
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Could not write to " + filename + ": " + e);
+        } catch (InterruptedException e) {
+            System.err.println("Writer of " + filename + " was interrupted");
+        }
+    }
+}
@@ -0,0 +1,44 @@
+import java.io.Serializable;
+
+/**
+ * A snapshot of the proxy's routing policy, leased to clients so they
+ * can pick servers without calling getConnection for every query.
+ *
+ * servers are the registered servers, and load[i] and serviceTimeNanos[i]
+ * are the load and the average job run time of servers[i] when the
+ * snapshot was taken. candidates[zone-1] are the servers the proxy may
+ * pick for a zone, as indexes into servers: the local[zone-1] servers in
+ * the zone itself first, then the servers in its two neighbouring zones.
+ * The client picks among them with the proxy's BalancingStrategy, named
+ * by strategy, so leased routing follows the same policy as the proxy.
+ * A client that routes to a server in another zone waits
+ * crossZoneDelayMillis, as the proxy would have.
+ *
+ * The lease runs out after validForRequests routed queries or
+ * validForMillis milliseconds, whichever comes first.
+ */
+public class RoutingTable implements Serializable {
+    private static final long serialVersionUID = 1L;
+    public final ConnectInfo[] servers;
+    public final int[] load;
+    public final long[] serviceTimeNanos;
+    public final int[][] candidates;
+    public final int[] local;
+    public final String strategy;
+    public final long crossZoneDelayMillis;
+    public final int validForRequests;
+    public final long validForMillis;
+
+    RoutingTable(ConnectInfo[] servers, int[] load, long[] serviceTimeNanos, int[][] candidates, int[] local,
+                 String strategy, long crossZoneDelayMillis, int validForRequests, long validForMillis) {
+        this.servers = servers;
+        this.load = load;
+        this.serviceTimeNanos = serviceTimeNanos;
+        this.candidates = candidates;
+        this.local = local;
+        this.strategy = strategy;
+        this.crossZoneDelayMillis = crossZoneDelayMillis;
+        this.validForRequests = validForRequests;
+        this.validForMillis = validForMillis;
+    }
+}
@@ -0,0 +1,75 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+
+/**
+ * Compares the sequential ScanEngine with the parallel, chunked one.
+ *
+ * Use
+ * > java ScanBenchmark [file] [parallelism] [iterations]
+ * which defaults to dataset.csv, all available cores and 10 iterations.
+ * The ids queried are taken from the first row of the file.
+ */
+public class ScanBenchmark {
+    // results are written here so the JIT can not drop the queries
+    static volatile long blackhole;
+
+    public static void main(String[] args) throws IOException {
+        String filename = args.length > 0 ? args[0] : Dataset.FILENAME;
+        int parallelism = args.length > 1 ? Integer.parseInt(args[1])
+                : Runtime.getRuntime().availableProcessors();
+        int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+        String[] row;
+        try (BufferedReader br = new BufferedReader(new FileReader(filename))) {
+            row = br.readLine().split(",");
+        }
+        String musicID = row[0];
+        String genre = row[row.length - 3];
+        String userID = row[row.length - 2];
+
+        ScanEngine sequential = new ScanEngine(filename, 1);
+        ScanEngine parallel = new ScanEngine(filename, parallelism);
+        System.out.printf("%s, parallelism %d, %d iterations%n", filename, parallelism, iterations);
+        System.out.printf("%-26s %14s %14s %8s%n", "method", "sequential ms", "parallel ms", "speedup");
+
+        String[] methods = {"getTimesPlayed", "getTimesPlayedByUser",
+                "getTopThreeMusicByUser", "getTopArtistsByUserGenre"};
+        for (int type = 1; type <= 4; type++) {
+            double s = time(sequential, type, musicID, userID, genre, iterations);
+            double p = time(parallel, type, musicID, userID, genre, iterations);
+            System.out.printf("%-26s %14.2f %14.2f %7.2fx%n", methods[type - 1], s, p, s / p);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * @return the average time in ms of one query, after an equal number of warm up runs
+     */
+    private static double time(ScanEngine engine, int type, String musicID, String userID,
+                               String genre, int iterations) {
+        long sink = 0;
+        long start = 0;
+        for (int i = 0; i < 2 * iterations; i++) {
+            if (i == iterations) {
+                start = System.nanoTime();
+            }
+            switch (type) {
+                case 1 :
+                    sink += engine.getTimesPlayed(musicID);
+                    break;
+                case 2 :
+                    sink += engine.getTimesPlayedByUser(musicID, userID);
+                    break;
+                case 3 :
+                    sink += engine.getTopMusicByUser(userID, Dataset.TOP_K).size();
+                    break;
+                case 4 :
+                    sink += engine.getTopArtistsByUserGenre(userID, genre, Dataset.TOP_K).size();
+                    break;
+            }
+        }
+        blackhole = sink;
+        return (System.nanoTime() - start) / 1000000.0 / iterations;
+    }
+}
@@ -0,0 +1,228 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BiConsumer;
+import java.util.function.BinaryOperator;
+import java.util.function.Supplier;
+
+/**
+ * QueryEngine which streams dataset.csv through a MappedCsvScanner for
+ * every query, for datasets that are too big to keep on the heap.
+ *
+ * Ids are matched by comparing bytes in the mapped file, and Strings
+ * are only created for the ids of rows that match a top list query.
+ *
+ * With a parallelism above 1 every scan is split into line aligned
+ * chunks which are aggregated on a ForkJoinPool and merged.
+ */
+class ScanEngine implements QueryEngine {
+    // worker threads per scan, set with -Dmusicstats.parallelism=<n>
+    static final int PARALLELISM = Integer.getInteger("musicstats.parallelism", 1);
+    private static ScanEngine instance;
+
+    private final MappedCsvScanner scanner;
+    private final ForkJoinPool pool;
+
+    /**
+     * @param filename path of the csv file
+     * @param parallelism number of threads per scan, 1 scans sequentially
+     */
+    ScanEngine(String filename, int parallelism) throws IOException {
+        this.scanner = new MappedCsvScanner(filename);
+        this.pool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+    }
+
+    /**
+     * All servers in the same JVM share one mapping of the dataset
+     */
+    static synchronized ScanEngine getInstance() {
+        if (instance == null) {
+            try {
+                instance = new ScanEngine(Dataset.FILENAME, PARALLELISM);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return instance;
+    }
+
+    @Override
+    public int getTimesPlayed(String musicID) {
+        byte[] m = bytes(musicID);
+        return scan(() -> new int[1], (total, row) -> {
+            if (row.fields() >= 4 && row.fieldEquals(0, m)) {
+                total[0] += row.parseInt(row.fields() - 1);
+            }
+        }, ScanEngine::sum)[0];
+    }
+
+    @Override
+    public int getTimesPlayedByUser(String musicID, String userID) {
+        byte[] m = bytes(musicID);
+        byte[] u = bytes(userID);
+        return scan(() -> new int[1], (total, row) -> {
+            if (row.fields() >= 4 && row.fieldEquals(0, m) && row.fieldEquals(row.fields() - 2, u)) {
+                total[0] += row.parseInt(row.fields() - 1);
+            }
+        }, ScanEngine::sum)[0];
+    }
+
+    @Override
+    public ArrayList<String> getTopMusicByUser(String userID, int k) {
+        byte[] u = bytes(userID);
+        HashMap<String, Integer> counts = scan(HashMap::new, (map, row) -> {
+            if (row.fields() >= 4 && row.fieldEquals(row.fields() - 2, u)) {
+                map.merge(row.field(0), row.parseInt(row.fields() - 1), Integer::sum);
+            }
+        }, ScanEngine::merge);
+        return topK(counts, k);
+    }
+
+    @Override
+    public ArrayList<String> getTopArtistsByUserGenre(String userID, String genre, int k) {
+        byte[] u = bytes(userID);
+        byte[] g = bytes(genre);
+        HashMap<String, Integer> counts = scan(HashMap::new, (map, row) -> {
+            int n = row.fields();
+            if (n >= 4 && row.fieldEquals(n - 2, u) && row.fieldEquals(n - 3, g)) {
+                int plays = row.parseInt(n - 1);
+                for (int i = 1; i < n - 3; i++) {
+                    if (row.firstByte(i) == 'A') {
+                        map.merge(row.field(i), plays, Integer::sum);
+                    }
+                }
+            }
+        }, ScanEngine::merge);
+        return topK(counts, k);
+    }
+
+    /**
+     * Answers every query of the batch in a single pass over the file
+     */
+    @Override
+    public Object[] answerAll(List<Query> queries) {
+        Query[] batch = queries.toArray(new Query[0]);
+        byte[][] arg1 = new byte[batch.length][];
+        byte[][] arg2 = new byte[batch.length][];
+        for (int i = 0; i < batch.length; i++) {
+            arg1[i] = bytes(batch[i].arg1);
+            arg2[i] = batch[i].arg2 == null ? null : bytes(batch[i].arg2);
+        }
+        BatchResult result = scan(() -> new BatchResult(batch.length),
+                (partial, row) -> partial.add(batch, arg1, arg2, row), BatchResult::merge);
+
+        Object[] answers = new Object[batch.length];
+        for (int i = 0; i < batch.length; i++) {
+            answers[i] = batch[i].type <= 2 ? (Object) result.counts[i] : topK(result.maps.get(i), Dataset.TOP_K);
+        }
+        return answers;
+    }
+
+    /**
+     * Partial answers for a batch: a count for the count queries and
+     * a map of id -> plays for the top list queries
+     */
+    private static class BatchResult {
+        final int[] counts;
+        final ArrayList<HashMap<String, Integer>> maps;
+
+        BatchResult(int n) {
+            counts = new int[n];
+            maps = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                maps.add(new HashMap<>());
+            }
+        }
+
+        void add(Query[] batch, byte[][] arg1, byte[][] arg2, MappedCsvScanner.Row row) {
+            int n = row.fields();
+            if (n < 4) {
+                return;
+            }
+            for (int q = 0; q < batch.length; q++) {
+                switch (batch[q].type) {
+                    case 1 :
+                        if (row.fieldEquals(0, arg1[q])) {
+                            counts[q] += row.parseInt(n - 1);
+                        }
+                        break;
+                    case 2 :
+                        if (row.fieldEquals(0, arg1[q]) && row.fieldEquals(n - 2, arg2[q])) {
+                            counts[q] += row.parseInt(n - 1);
+                        }
+                        break;
+                    case 3 :
+                        if (row.fieldEquals(n - 2, arg1[q])) {
+                            maps.get(q).merge(row.field(0), row.parseInt(n - 1), Integer::sum);
+                        }
+                        break;
+                    case 4 :
+                        if (row.fieldEquals(n - 2, arg1[q]) && row.fieldEquals(n - 3, arg2[q])) {
+                            int plays = row.parseInt(n - 1);
+                            for (int i = 1; i < n - 3; i++) {
+                                if (row.firstByte(i) == 'A') {
+                                    maps.get(q).merge(row.field(i), plays, Integer::sum);
+                                }
+                            }
+                        }
+                        break;
+                }
+            }
+        }
+
+        static BatchResult merge(BatchResult a, BatchResult b) {
+            for (int q = 0; q < a.counts.length; q++) {
+                a.counts[q] += b.counts[q];
+                a.maps.set(q, ScanEngine.merge(a.maps.get(q), b.maps.get(q)));
+            }
+            return a;
+        }
+    }
+
+    /**
+     * Folds every row of the file into a result, sequentially or in
+     * parallel chunks depending on the parallelism of the engine
+     */
+    private <A> A scan(Supplier<A> identity, BiConsumer<A, MappedCsvScanner.Row> accumulator,
+                       BinaryOperator<A> combiner) {
+        if (pool == null) {
+            A result = identity.get();
+            scanner.scan(row -> accumulator.accept(result, row));
+            return result;
+        }
+        return scanner.scan(pool, identity, accumulator, combiner);
+    }
+
+    private static int[] sum(int[] a, int[] b) {
+        a[0] += b[0];
+        return a;
+    }
+
+    private static HashMap<String, Integer> merge(HashMap<String, Integer> a, HashMap<String, Integer> b) {
+        if (a.size() < b.size()) {
+            return merge(b, a);
+        }
+        b.forEach((key, value) -> a.merge(key, value, Integer::sum));
+        return a;
+    }
+
+    /**
+     * @return the k keys with the highest counts, ties broken by the smallest key as in Dataset
+     */
+    static ArrayList<String> topK(Map<String, Integer> counts, int k) {
+        ArrayList<Map.Entry<String, Integer>> entries = new ArrayList<>(counts.entrySet());
+        entries.sort(Map.Entry.<String, Integer>comparingByValue().reversed()
+                .thenComparing(Map.Entry.comparingByKey()));
+        ArrayList<String> list = new ArrayList<>(k);
+        for (int i = 0; i < Math.min(k, entries.size()); i++) {
+            list.add(entries.get(i).getKey());
+        }
+        return list;
+    }
+
+    private static byte[] bytes(String id) {
+        return id.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -5,6 +5,9 @@ import java.rmi.server.UnicastRemoteObject;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 /**
  * A class representing a "smart" server with caching which implements the interface MusicStats. The interface is overridden and exposed to
@@ -12,63 +15,139 @@ import java.util.concurrent.TimeUnit;
  */
 public class Server implements MusicStats {
 
-    private final int QUEUE_CAPACITY = 20;
+    // shared by every server in the JVM running with server.executor=workStealing
+    private static ForkJoinPool workStealingPool;
+
+    private final ServerConfig config;
     private LinkedBlockingDeque<Runnable> waitingList;
-    private ThreadPoolExecutor pool;
+    private ExecutorService pool;
+    // jobs submitted but not yet started by a worker
+    private final AtomicInteger queued = new AtomicInteger();
+    // limits the jobs in flight with server.executor=virtual
+    private Semaphore permits;
+    // jobs running on a worker, and their average run time
+    private final AtomicInteger running = new AtomicInteger();
+    private volatile double serviceTimeEwma;
+    private static final double EWMA_WEIGHT = 0.2;
+    // the least a busy server asks its clients to wait
+    private static final long MIN_RETRY_AFTER_MILLIS = 10;
     private boolean naiveMode;
+    QueryEngine engine;
+    // counters and gauges for JMX and Balance.getStats()
+    private final ServerMetrics metrics;
 
-    /* port and name */
+    /* port, name and the zone the server is in */
     private final String name;
     private final int port;
+    private final int zone;
 
-    /* caches */
-    // Cache 100 musicProfiles
-    LinkedHashMap<String, MusicProfile> musicCache = new LinkedHashMap<String, MusicProfile>(100, 0.7f, true) {
-        private static final int MAX_ENTRIES = 100;
-
-        protected boolean removeEldestEntry(Map.Entry eldest) {
-            return size() > MAX_ENTRIES;
-        }
-    };
-    // Cache 100 userProfiles
-    LinkedHashMap<String, UserProfile> userCache = new LinkedHashMap<String, UserProfile>(100, 0.7f, true) {
-        private static final int MAX_ENTRIES = 100;
-
-        protected boolean removeEldestEntry(Map.Entry eldest) {
-            return size() > MAX_ENTRIES;
-        }
-    };
+    /* caches, shared by the workers of this server */
+    final ConcurrentLruCache<String, MusicProfile> musicCache;
+    final ConcurrentLruCache<String, UserProfile> userCache;
+    // concurrent cache misses for the same query share one computation
+    final SingleFlight<String, Integer> inFlightCounts = new SingleFlight<>();
+    final SingleFlight<String, ArrayList<String>> inFlightLists = new SingleFlight<>();
 
     /**
      * Public constructor for Server
      * @param name unique server name
      * @param port unique port
+     * @param zone the zone of the server, 1-5
+     */
+    public Server(String name, int port, int zone, boolean naive) {
+        this(name, port, zone, naive, ServerConfig.fromProperties());
+    }
+
+    /**
+     * @param name unique server name
+     * @param port unique port
+     * @param zone the zone of the server, 1-5
+     * @param config settings for the worker pool
      */
-    public Server(String name, int port, boolean naive) {
-        this.waitingList = new LinkedBlockingDeque<>(QUEUE_CAPACITY);
-        this.pool = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS, waitingList);
+    public Server(String name, int port, int zone, boolean naive, ServerConfig config) {
+        this.config = config;
+        this.musicCache = config.createCache(MusicProfile::estimatedSize);
+        this.userCache = config.createCache(UserProfile::estimatedSize);
+        this.pool = createPool(config);
         this.naiveMode = naive;
+        this.metrics = new ServerMetrics(this);
+        this.engine = new TimedQueryEngine(QueryEngine.create(), metrics);
         this.name = name;
         this.port = port;
-        // naiveMode = false;
+        this.zone = zone;
+    }
+
+    private ExecutorService createPool(ServerConfig config) {
+        if (config.executor.equals("virtual")) {
+            // there is no queue, the semaphore gives backpressure instead
+            this.permits = new Semaphore(config.maxInFlight);
+            return newVirtualThreadExecutor();
+        }
+        if (config.executor.equals("workStealing")) {
+            synchronized (Server.class) {
+                if (workStealingPool == null) {
+                    // asyncMode gives FIFO order for submitted jobs
+                    workStealingPool = new ForkJoinPool(config.workers,
+                            ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+                }
+            }
+            return workStealingPool;
+        }
+        RejectedExecutionHandler handler;
+        switch (config.rejection) {
+            case "callerRuns" :
+                handler = new ThreadPoolExecutor.CallerRunsPolicy();
+                break;
+            case "discardOldest" :
+                // cancel the oldest job, so its client gets an answer instead of waiting forever
+                handler = (job, executor) -> {
+                    Runnable oldest = executor.getQueue().poll();
+                    if (oldest instanceof Future) {
+                        ((Future<?>) oldest).cancel(false);
+                    }
+                    executor.execute(job);
+                };
+                break;
+            default :
+                handler = new ThreadPoolExecutor.AbortPolicy();
+        }
+        this.waitingList = new LinkedBlockingDeque<>(config.queueCapacity);
+        return new ThreadPoolExecutor(config.workers, config.maxWorkers, 60, TimeUnit.SECONDS,
+                waitingList, handler);
+    }
+
+    /**
+     * Looked up by reflection, as virtual threads need Java 21 while the
+     * rest of the server compiles and runs on older versions
+     * @return an executor that starts a new virtual thread for every job
+     */
+    static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.err.println("Virtual threads are not available, using a cached thread pool instead");
+            return Executors.newCachedThreadPool();
+        }
     }
 
     /**
      * Sets up the remote interfaces through Server.java and
      * Balance.java
      *
-     * 2006 through 2010 are the port number for Balance objects
+     * The Balance object shares the port of the server, and registers
+     * the server with the proxy once the server is bound
      */
     public void launch() {
         try {
             MusicStats stub = (MusicStats) UnicastRemoteObject.exportObject(this, port);
 
-            Balance balance = new Balance(this, port + 6);
-            balance.init();
-
             Registry registry = LocateRegistry.getRegistry();
             registry.bind(name, stub);
-            System.err.println("Server: " + name + " ready");
+            System.err.println("Server: " + name + " ready in zone " + zone + " (" + config + ")");
+            metrics.register(name);
+
+            Balance balance = new Balance(this, port);
+            balance.init();
         } catch (Exception e) {
             System.err.println("Server exception: " + e);
             e.printStackTrace();
@@ -77,24 +156,36 @@ public class Server implements MusicStats {
 
     /**
      * Use
-     * > java Server -n
-     * to start the server in naive mode.
+     * > java Server -p 2010 -z 3
+     * to start one more server on port 2010 in zone 3, while the others
+     * and the proxy are running. It registers with the proxy by itself.
+     * Add -n to start the server in naive mode.
      * This uses NaiveServerJob instead of CachedServerJob
      */
     public static void main(String[] args) {
-        System.getProperty("user.dir");
         int portNum = 50000;
-
-        Server obj = new Server("Server"+portNum, portNum, true);
-        obj.launch();
+        int zone = 1;
+        boolean naive = false;
 
         /* parse cmd line */
-        for (String s : args) {
-            if (s.equals("-n")) {
-                obj.naiveMode = true;
-                break;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-n")) {
+                naive = true;
+            } else if (args[i].equals("-p") && i + 1 < args.length) {
+                portNum = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-z") && i + 1 < args.length) {
+                zone = Integer.parseInt(args[++i]);
             }
         }
+        if (zone < 1 || zone > Proxy.NUM_ZONES) {
+            System.err.println("Zone " + zone + " is not between 1 and " + Proxy.NUM_ZONES
+                    + ", the zones of the proxy (set with -Dproxy.zones)");
+            System.exit(1);
+        }
+
+        Server obj = new Server("Server"+portNum, portNum, zone, naive);
+        obj.launch();
+
         if (obj.naiveMode) {
             System.out.println("Running in naive mode...");
         } else {
@@ -110,38 +201,14 @@ public class Server implements MusicStats {
      */
     @Override
     public Payload getTimesPlayed(String musicID) throws RemoteException {
-        // return FutureTask?
-        // --> Futures cannot be returned from remote object, so we have to
+        // Futures cannot be returned from remote object, so we have to
         // wait for the Future inside the remote method
         long waitingTimeStart = System.nanoTime();
-
-        // TODO:
-        // Have the methods return
-        // timing information to the client
-        NaiveServerJob<Payload> naiveJob;
-        CachedServerJob<Payload> cachedJob;
-        Future<Payload> future;
-        // create server job and submit to queue
+        metrics.recordRequest(1);
         if (naiveMode) {
-            naiveJob = NaiveServerJob.createServerJob(1, musicID, waitingTimeStart);
-            assert naiveJob != null;
-            future = pool.submit(naiveJob);
-        } else {
-            cachedJob = CachedServerJob.createServerJob(1, musicID, this, waitingTimeStart);
-            assert cachedJob != null;
-            future = pool.submit(cachedJob);
-        }
-
-        Payload res = null;
-        try {
-            res = future.get();
-        } catch (InterruptedException e) {
-            System.err.println("The remote method was interrupted.");
-        } catch (ExecutionException e) {
-            System.err.println("The exec thread aborted task.");
-            System.err.println("Cause: " + e.getCause());
+            return execute(NaiveServerJob.createServerJob(1, musicID, engine, waitingTimeStart), 0, Function.identity());
         }
-        return res;
+        return execute(CachedServerJob.createServerJob(1, musicID, this, waitingTimeStart), 0, Function.identity());
     }
 
     /**
@@ -154,28 +221,11 @@ public class Server implements MusicStats {
     @Override
     public Payload getTimesPlayedByUser(String musicID, String userID) throws RemoteException, InterruptedException {
         long waitingTimeStart = System.nanoTime();
-        NaiveServerJob<Payload> naiveJob;
-        CachedServerJob<Payload> cachedJob;
-        Future<Payload> future;
-        // create server job and submit to queue
+        metrics.recordRequest(2);
         if (naiveMode) {
-            naiveJob = NaiveServerJob.createServerJob(2, musicID, userID, waitingTimeStart);
-            assert naiveJob != null;
-            future = pool.submit(naiveJob);
-        } else {
-            cachedJob = CachedServerJob.createServerJob(2, musicID, userID, this, waitingTimeStart);
-            assert cachedJob != null;
-            future = pool.submit(cachedJob);
+            return execute(NaiveServerJob.createServerJob(2, musicID, userID, engine, waitingTimeStart), 0, Function.identity());
         }
-
-        Payload res = null;
-        try {
-            res = future.get();
-        } catch (ExecutionException e) {
-            System.err.println("The exec thread aborted task.");
-            System.err.println("Cause: " + e.getCause());
-        }
-        return res;
+        return execute(CachedServerJob.createServerJob(2, musicID, userID, this, waitingTimeStart), 0, Function.identity());
     }
 
     /**
@@ -186,28 +236,11 @@ public class Server implements MusicStats {
     @Override
     public Payload getTopThreeMusicByUser(String userID) throws RemoteException, InterruptedException {
         long waitingTimeStart = System.nanoTime();
-        NaiveServerJob<Payload> naiveJob;
-        CachedServerJob<Payload> cachedJob;
-        Future<Payload> future;
-        // create server job and submit to queue
+        metrics.recordRequest(3);
         if (naiveMode) {
-            naiveJob = NaiveServerJob.createServerJob(3, userID, waitingTimeStart);
-            assert naiveJob != null;
-            future = pool.submit(naiveJob);
-        } else {
-            cachedJob = CachedServerJob.createServerJob(3, userID, this, waitingTimeStart);
-            assert cachedJob != null;
-            future = pool.submit(cachedJob);
+            return execute(NaiveServerJob.createServerJob(3, userID, engine, waitingTimeStart), 0, Function.identity());
         }
-
-        Payload res = null;
-        try {
-            res = future.get();
-        } catch (ExecutionException e) {
-            System.err.println("The exec thread aborted task.");
-            System.err.println("Cause: " + e.getCause());
-        }
-        return res;
+        return execute(CachedServerJob.createServerJob(3, userID, this, waitingTimeStart), 0, Function.identity());
     }
 
     /**
@@ -219,36 +252,272 @@ public class Server implements MusicStats {
     @Override
     public Payload getTopArtistsByUserGenre(String userID, String genre) throws RemoteException, InterruptedException {
         long waitingTimeStart = System.nanoTime();
-        NaiveServerJob<Payload> naiveJob;
-        CachedServerJob<Payload> cachedJob;
-        Future<Payload> future;
-        // create server job and submit to queue
+        metrics.recordRequest(4);
+        if (naiveMode) {
+            return execute(NaiveServerJob.createServerJob(4, userID, genre, engine, waitingTimeStart), 0, Function.identity());
+        }
+        return execute(CachedServerJob.createServerJob(4, userID, genre, this, waitingTimeStart), 0, Function.identity());
+    }
+
+    /**
+     * Answers a query, dropping it if its timeout passes before a worker
+     * gets to it
+     * @param query the query, with or without a timeout
+     * @return the answer, or a Payload with the status busy, expired or failed
+     * @throws RemoteException in case of connectivity issues
+     */
+    @Override
+    public Payload run(Query query) throws RemoteException {
+        long waitingTimeStart = System.nanoTime();
+        long deadline = deadline(waitingTimeStart, query.timeoutMillis);
+        if (!query.hasKnownType()) {
+            return unknownType(query);
+        }
+        metrics.recordRequest(query.type);
+        Callable<Payload> job;
         if (naiveMode) {
-            naiveJob = NaiveServerJob.createServerJob(4, userID, genre, waitingTimeStart);
-            assert naiveJob != null;
-            future = pool.submit(naiveJob);
+            job = query.arg2 == null
+                    ? NaiveServerJob.createServerJob(query.type, query.arg1, engine, waitingTimeStart)
+                    : NaiveServerJob.createServerJob(query.type, query.arg1, query.arg2, engine, waitingTimeStart);
         } else {
-            cachedJob = CachedServerJob.createServerJob(4, userID, genre, this, waitingTimeStart);
-            assert cachedJob != null;
-            future = pool.submit(cachedJob);
+            job = query.arg2 == null
+                    ? CachedServerJob.createServerJob(query.type, query.arg1, this, waitingTimeStart)
+                    : CachedServerJob.createServerJob(query.type, query.arg1, query.arg2, this, waitingTimeStart);
+        }
+        return execute(job, deadline, Function.identity());
+    }
+
+    /**
+     * Answers a batch of queries as a single job, so the whole batch is
+     * answered with one pass over the data. The batch has the shortest
+     * timeout of its queries. Queries of an unknown type are answered as
+     * failed, and the rest of the batch is run without them.
+     * @param queries the batch
+     * @return one Payload per query, in the same order
+     * @throws RemoteException in case of connectivity issues
+     */
+    @Override
+    public List<Payload> runBatch(List<Query> queries) throws RemoteException {
+        long waitingTimeStart = System.nanoTime();
+        long timeoutMillis = 0;
+        List<Query> known = new ArrayList<>(queries.size());
+        for (Query query : queries) {
+            if (query.hasKnownType()) {
+                known.add(query);
+            }
+        }
+        if (known.isEmpty()) {
+            return queries.stream().map(this::unknownType).collect(Collectors.toList());
+        }
+        metrics.recordRequest(5);
+        for (Query query : known) {
+            metrics.recordRequest(query.type);
+            if (query.timeoutMillis > 0 && (timeoutMillis == 0 || query.timeoutMillis < timeoutMillis)) {
+                timeoutMillis = query.timeoutMillis;
+            }
+        }
+        long deadline = deadline(waitingTimeStart, timeoutMillis);
+        Function<Payload, List<Payload>> unanswered = payload -> Collections.nCopies(known.size(), payload);
+        List<Payload> payloads = naiveMode
+                ? execute(NaiveServerJob.createBatchJob(known, engine, waitingTimeStart), deadline, unanswered)
+                : execute(CachedServerJob.createBatchJob(known, this, waitingTimeStart), deadline, unanswered);
+        if (known.size() == queries.size()) {
+            return payloads;
+        }
+        List<Payload> all = new ArrayList<>(queries.size());
+        Iterator<Payload> answers = payloads.iterator();
+        for (Query query : queries) {
+            all.add(query.hasKnownType() ? answers.next() : unknownType(query));
+        }
+        return all;
+    }
+
+    /**
+     * @return a failed Payload for a query with a type that is not one of the four methods
+     */
+    private Payload unknownType(Query query) {
+        System.err.println(name + " refused a query of unknown type " + query.type);
+        metrics.recordFailed();
+        return Payload.failed();
+    }
+
+    /**
+     * @return the System.nanoTime() a job received at start must be done by, 0 for no timeout
+     */
+    private static long deadline(long start, long timeoutMillis) {
+        return timeoutMillis > 0 ? start + TimeUnit.MILLISECONDS.toNanos(timeoutMillis) : 0;
+    }
+
+    /**
+     * Submits a job to the worker pool and waits for its result.
+     *
+     * A job that does not fit in the queue is not run, and the client is
+     * told the server is busy, with a guess at when to try again. A job
+     * whose deadline passes is answered as expired; if it has not started
+     * by then, it is dropped when a worker gets to it.
+     * @param deadline the System.nanoTime() the client stops waiting at, 0 for never
+     * @param unanswered makes the result from a Payload saying why there is no answer
+     * @return the result, or what unanswered makes if there is none
+     */
+    private <T> T execute(Callable<T> task, long deadline, Function<Payload, T> unanswered) {
+        Callable<T> job = measured(task, deadline, unanswered);
+        Future<T> future;
+        try {
+            future = submit(job);
+        } catch (RejectedExecutionException e) {
+            metrics.recordRejected();
+            return unanswered.apply(Payload.busy(retryAfterMillis()));
         }
 
-        Payload res = null;
         try {
-            res = future.get();
+            if (deadline == 0) {
+                return future.get();
+            }
+            return future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            metrics.recordExpired();
+            return unanswered.apply(Payload.expired());
+        } catch (InterruptedException e) {
+            System.err.println("The remote method was interrupted.");
         } catch (ExecutionException e) {
             System.err.println("The exec thread aborted task.");
             System.err.println("Cause: " + e.getCause());
+        } catch (CancellationException e) {
+            // discarded from a full queue
+            metrics.recordRejected();
+            return unanswered.apply(Payload.busy(retryAfterMillis()));
         }
-        return res;
+        metrics.recordFailed();
+        return unanswered.apply(Payload.failed());
+    }
+
+    /**
+     * @throws RejectedExecutionException if the server has no room for the job
+     */
+    private <T> Future<T> submit(Callable<T> job) {
+        if (permits != null) {
+            if (!permits.tryAcquire()) {
+                throw new RejectedExecutionException(name + " already has " + config.maxInFlight + " jobs in flight");
+            }
+            try {
+                return pool.submit(() -> {
+                    try {
+                        return job.call();
+                    } finally {
+                        permits.release();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                permits.release();
+                throw e;
+            }
+        }
+        if (pool == workStealingPool) {
+            // the pool is shared, so this server counts its own queued jobs
+            if (queued.incrementAndGet() > config.queueCapacity) {
+                queued.decrementAndGet();
+                if (!config.rejection.equals("callerRuns")) {
+                    throw new RejectedExecutionException("Queue of " + name + " is full");
+                }
+                FutureTask<T> inline = new FutureTask<>(job);
+                inline.run();
+                return inline;
+            }
+            return pool.submit(() -> {
+                queued.decrementAndGet();
+                return job.call();
+            });
+        }
+        return pool.submit(job);
+    }
+
+    /**
+     * Guesses how long the jobs ahead of a new one will take, from the
+     * average service time
+     */
+    private long retryAfterMillis() {
+        // the core workers, as the pool only grows past them once the queue is full
+        int workers = permits != null ? config.maxInFlight : config.workers;
+        // with virtual threads the jobs in flight already include the running ones
+        int jobs = permits != null ? getSize() : getSize() + running.get();
+        double nanos = jobs * serviceTimeEwma / Math.max(1, workers);
+        return Math.max(MIN_RETRY_AFTER_MILLIS, TimeUnit.NANOSECONDS.toMillis((long) nanos));
+    }
+
+    /**
+     * Drops the task if its deadline has passed before it starts, else
+     * counts it as running while it runs, and adds its run time to the
+     * average service time
+     */
+    private <T> Callable<T> measured(Callable<T> task, long deadline, Function<Payload, T> unanswered) {
+        return () -> {
+            if (deadline != 0 && System.nanoTime() - deadline >= 0) {
+                // the client has normally been told already, when the wait for it timed out
+                return unanswered.apply(Payload.expired());
+            }
+            running.incrementAndGet();
+            long start = System.nanoTime();
+            try {
+                return task.call();
+            } finally {
+                running.decrementAndGet();
+                recordServiceTime(System.nanoTime() - start);
+            }
+        };
+    }
+
+    private synchronized void recordServiceTime(long nanos) {
+        serviceTimeEwma = serviceTimeEwma == 0 ? nanos : serviceTimeEwma + EWMA_WEIGHT * (nanos - serviceTimeEwma);
     }
 
     /**
      * called by Balance
-     * to return the list size
+     * @return the current load of this server, for the proxy
+     */
+    LoadReport getLoadReport() {
+        // with virtual threads nothing waits for a worker
+        int waiting = permits != null ? 0 : getSize();
+        return new LoadReport(name, waiting, running.get(), (long) serviceTimeEwma,
+                musicCache.getHits() + userCache.getHits(), musicCache.getMisses() + userCache.getMisses());
+    }
+
+    ConnectInfo getConnectInfo() {
+        return new ConnectInfo(name, port, zone);
+    }
+
+    ServerConfig getConfig() {
+        return config;
+    }
+
+    ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    int getRunning() {
+        return running.get();
+    }
+
+    /**
+     * @return the number of jobs that can run at once
+     */
+    int getWorkers() {
+        return Math.max(1, permits != null ? config.maxInFlight : config.maxWorkers);
+    }
+
+    double getServiceTimeNanos() {
+        return serviceTimeEwma;
+    }
+
+    /**
+     * called by Balance
+     * to return the list size, or the number of jobs in flight
+     * when every job gets its own virtual thread
      */
     int getSize() {
-        return waitingList.size();
+        if (permits != null) {
+            return config.maxInFlight - permits.availablePermits();
+        }
+        return pool == workStealingPool ? queued.get() : waitingList.size();
     }
 
 }
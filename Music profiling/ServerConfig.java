@@ -0,0 +1,80 @@
+import java.util.function.ToIntFunction;
+
+/**
+ * Settings for the worker pool of a Server.
+ *
+ * The defaults match the original single worker server. They are read
+ * from system properties, so they can be changed when starting the
+ * servers, e.g.
+ * > java -Dserver.workers=4 -Dserver.queueCapacity=50 ServerSimulator
+ *
+ * server.executor     "pool" (ThreadPoolExecutor), "workStealing" (one
+ *                     ForkJoinPool shared by every server in the JVM) or
+ *                     "virtual" (a new virtual thread per job, Java 21+)
+ * server.workers      core number of worker threads, defaults to the number
+ *                     of cores for "workStealing"
+ * server.maxWorkers   maximum number of worker threads, only used by "pool"
+ * server.queueCapacity max number of jobs waiting for a worker
+ * server.rejection    what to do with a job when the queue is full:
+ *                     "abort", "callerRuns" or "discardOldest". "workStealing"
+ *                     only supports "abort" and "callerRuns"
+ * server.maxInFlight  max number of jobs running at once with "virtual",
+ *                     further jobs are rejected
+ * server.cacheEntries max number of entries in each of the server caches
+ * server.cacheBytes   if set, bounds each server cache by the estimated size
+ *                     of its profiles in bytes instead of by entries
+ * server.reportMillis how often the load is checked and pushed to the proxy
+ *                     when it changed. An unchanged load is pushed every
+ *                     Balance.HEARTBEAT_MILLIS, or every interval if that is
+ *                     longer, which must stay below proxy.serverTimeoutMillis
+ */
+class ServerConfig {
+    String executor = "pool";
+    int workers = 1;
+    int maxWorkers = 1;
+    int queueCapacity = 20;
+    String rejection = "abort";
+    int maxInFlight = 1000;
+    int cacheEntries = 100;
+    long cacheBytes = 0;
+    long reportMillis = 100;
+
+    static ServerConfig fromProperties() {
+        ServerConfig config = new ServerConfig();
+        config.executor = System.getProperty("server.executor", config.executor);
+        if (config.executor.equals("workStealing")) {
+            config.workers = Runtime.getRuntime().availableProcessors();
+        }
+        config.workers = Integer.getInteger("server.workers", config.workers);
+        config.maxWorkers = Math.max(config.workers,
+                Integer.getInteger("server.maxWorkers", config.workers));
+        config.queueCapacity = Integer.getInteger("server.queueCapacity", config.queueCapacity);
+        config.rejection = System.getProperty("server.rejection", config.rejection);
+        config.maxInFlight = Integer.getInteger("server.maxInFlight", config.maxInFlight);
+        config.cacheEntries = Integer.getInteger("server.cacheEntries", config.cacheEntries);
+        config.cacheBytes = Long.getLong("server.cacheBytes", config.cacheBytes);
+        config.reportMillis = Long.getLong("server.reportMillis", config.reportMillis);
+        return config;
+    }
+
+    /**
+     * @return an empty cache bounded by cacheBytes if it is set, else by cacheEntries
+     */
+    <V> ConcurrentLruCache<String, V> createCache(ToIntFunction<V> sizeInBytes) {
+        if (cacheBytes > 0) {
+            return new ConcurrentLruCache<>(cacheBytes, sizeInBytes);
+        }
+        return new ConcurrentLruCache<>(cacheEntries);
+    }
+
+    @Override
+    public String toString() {
+        if (executor.equals("virtual")) {
+            return String.format("executor=%s, maxInFlight=%d, cache=%s", executor, maxInFlight,
+                    cacheBytes > 0 ? cacheBytes + " bytes" : cacheEntries + " entries");
+        }
+        return String.format("executor=%s, workers=%d, maxWorkers=%d, queueCapacity=%d, rejection=%s, cache=%s",
+                executor, workers, maxWorkers, queueCapacity, rejection,
+                cacheBytes > 0 ? cacheBytes + " bytes" : cacheEntries + " entries");
+    }
+}
@@ -0,0 +1,180 @@
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counters and gauges of one server, for JMX and for BalancerIf.getStats().
+ *
+ * The server counts requests, turned away and dropped jobs, and the
+ * scans of its QueryEngine here; the gauges, such as the queue depth,
+ * are read from the server when asked for. The request rate of each
+ * method is the rate since the previous snapshot, taken at most once a
+ * second, so it does not depend on how often the metrics are read.
+ */
+class ServerMetrics implements ServerMetricsMBean {
+    private static final long RATE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final Server server;
+    private final long startNanos = System.nanoTime();
+    // by query type - 1, then batches
+    private final LongAdder[] requests = new LongAdder[5];
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder scans = new LongAdder();
+    private final LongAdder scanNanos = new LongAdder();
+
+    private long rateSampleNanos = startNanos;
+    private final long[] rateSampleRequests = new long[requests.length];
+    private final double[] requestRates = new double[requests.length];
+
+    ServerMetrics(Server server) {
+        this.server = server;
+        for (int i = 0; i < requests.length; i++) {
+            requests[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Registers these metrics with the platform MBean server, so jconsole
+     * and other JMX clients can read them
+     */
+    void register(String name) {
+        try {
+            ObjectName objectName = new ObjectName("MusicStats:type=Server,name=" + name);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        } catch (JMException e) {
+            System.err.println("Could not register the metrics of " + name + ": " + e);
+        }
+    }
+
+    /**
+     * @param type the query type, or 5 for a batch
+     */
+    void recordRequest(int type) {
+        requests[type - 1].increment();
+    }
+
+    void recordRejected() {
+        rejected.increment();
+    }
+
+    void recordExpired() {
+        expired.increment();
+    }
+
+    void recordFailed() {
+        failed.increment();
+    }
+
+    void recordScan(long nanos) {
+        scans.increment();
+        scanNanos.add(nanos);
+    }
+
+    ServerStats snapshot() {
+        long[] counts = new long[requests.length];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = requests[i].sum();
+        }
+        return new ServerStats(server.getConnectInfo().address,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos), counts, requestRates(counts),
+                getMusicCacheHitRatio(), getUserCacheHitRatio(), getQueueDepth(), getRunningJobs(),
+                getWorkerUtilisation(), getServiceTimeMillis(), getScans(), getScanTimeMillis(),
+                getRejectedJobs(), getExpiredJobs(), getFailedJobs());
+    }
+
+    /**
+     * @param counts the requests so far, by query type - 1, then batches
+     * @return the requests per second of each, in the same order
+     */
+    private synchronized double[] requestRates(long[] counts) {
+        long now = System.nanoTime();
+        if (now - rateSampleNanos >= RATE_INTERVAL_NANOS) {
+            for (int i = 0; i < counts.length; i++) {
+                requestRates[i] = (counts[i] - rateSampleRequests[i]) * 1e9 / (now - rateSampleNanos);
+                rateSampleRequests[i] = counts[i];
+            }
+            rateSampleNanos = now;
+        }
+        return requestRates.clone();
+    }
+
+    @Override
+    public long[] getRequests() {
+        return snapshot().requests;
+    }
+
+    @Override
+    public long getTotalRequests() {
+        return snapshot().totalRequests();
+    }
+
+    @Override
+    public double getRequestRate() {
+        return snapshot().totalRequestRate();
+    }
+
+    @Override
+    public double[] getRequestRates() {
+        return snapshot().requestRates;
+    }
+
+    @Override
+    public double getMusicCacheHitRatio() {
+        return server.musicCache.getHitRatio();
+    }
+
+    @Override
+    public double getUserCacheHitRatio() {
+        return server.userCache.getHitRatio();
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return server.getSize();
+    }
+
+    @Override
+    public int getRunningJobs() {
+        return server.getRunning();
+    }
+
+    @Override
+    public double getWorkerUtilisation() {
+        return (double) server.getRunning() / server.getWorkers();
+    }
+
+    @Override
+    public double getServiceTimeMillis() {
+        return server.getServiceTimeNanos() / 1e6;
+    }
+
+    @Override
+    public long getScans() {
+        return scans.sum();
+    }
+
+    @Override
+    public double getScanTimeMillis() {
+        long count = scans.sum();
+        return count == 0 ? 0 : scanNanos.sum() / 1e6 / count;
+    }
+
+    @Override
+    public long getRejectedJobs() {
+        return rejected.sum();
+    }
+
+    @Override
+    public long getExpiredJobs() {
+        return expired.sum();
+    }
+
+    @Override
+    public long getFailedJobs() {
+        return failed.sum();
+    }
+}
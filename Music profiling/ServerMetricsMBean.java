@@ -0,0 +1,42 @@
+/**
+ * The metrics of a server as JMX attributes, registered as
+ * MusicStats:type=Server,name=<server name>. Times are in ms.
+ */
+public interface ServerMetricsMBean {
+
+    /**
+     * @return requests by query type - 1, then the number of batches
+     */
+    long[] getRequests();
+
+    long getTotalRequests();
+
+    double getRequestRate();
+
+    /**
+     * @return requests per second by query type - 1, then batches
+     */
+    double[] getRequestRates();
+
+    double getMusicCacheHitRatio();
+
+    double getUserCacheHitRatio();
+
+    int getQueueDepth();
+
+    int getRunningJobs();
+
+    double getWorkerUtilisation();
+
+    double getServiceTimeMillis();
+
+    long getScans();
+
+    double getScanTimeMillis();
+
+    long getRejectedJobs();
+
+    long getExpiredJobs();
+
+    long getFailedJobs();
+}
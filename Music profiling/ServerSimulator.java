@@ -11,7 +11,7 @@ public class ServerSimulator {
 
         try {
             for (int i = 2000; i < 2005; i++) {
-                Server obj = new Server("Server" + i, i, naiveMode);
+                Server obj = new Server("Server" + i, i, i - 1999, naiveMode);
                 obj.launch();
             }
         } catch (Exception e) {
@@ -0,0 +1,74 @@
+import java.io.Serializable;
+
+/**
+ * A snapshot of the metrics of a server, returned by BalancerIf.getStats().
+ */
+public class ServerStats implements Serializable {
+    private static final long serialVersionUID = 1L;
+    public final String address;
+    public final long uptimeMillis;
+    /* requests by query type - 1, then the number of batches; a batch counts each of its queries too */
+    public final long[] requests;
+    /* requests per second over the last second or more, by query type - 1, then batches */
+    public final double[] requestRates;
+    public final double musicCacheHitRatio, userCacheHitRatio;
+    /* jobs waiting for a worker, and running on one */
+    public final int queueDepth, runningJobs;
+    /* running jobs / workers */
+    public final double workerUtilisation;
+    /* moving average of the run time of a job */
+    public final double serviceTimeMillis;
+    /* queries answered from the data rather than a cache, and their mean time */
+    public final long scans;
+    public final double scanTimeMillis;
+    /* jobs turned away busy, dropped after their deadline, and failed */
+    public final long rejectedJobs, expiredJobs, failedJobs;
+
+    ServerStats(String address, long uptimeMillis, long[] requests, double[] requestRates,
+                double musicCacheHitRatio, double userCacheHitRatio, int queueDepth, int runningJobs,
+                double workerUtilisation, double serviceTimeMillis, long scans, double scanTimeMillis,
+                long rejectedJobs, long expiredJobs, long failedJobs) {
+        this.address = address;
+        this.uptimeMillis = uptimeMillis;
+        this.requests = requests;
+        this.requestRates = requestRates;
+        this.musicCacheHitRatio = musicCacheHitRatio;
+        this.userCacheHitRatio = userCacheHitRatio;
+        this.queueDepth = queueDepth;
+        this.runningJobs = runningJobs;
+        this.workerUtilisation = workerUtilisation;
+        this.serviceTimeMillis = serviceTimeMillis;
+        this.scans = scans;
+        this.scanTimeMillis = scanTimeMillis;
+        this.rejectedJobs = rejectedJobs;
+        this.expiredJobs = expiredJobs;
+        this.failedJobs = failedJobs;
+    }
+
+    long totalRequests() {
+        long total = 0;
+        for (int type = 0; type < 4; type++) {
+            total += requests[type];
+        }
+        return total;
+    }
+
+    double totalRequestRate() {
+        double total = 0;
+        for (int type = 0; type < 4; type++) {
+            total += requestRates[type];
+        }
+        return total;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: requests=%d (%d/%d/%d/%d, %d batches), %.1f/s (%.1f/%.1f/%.1f/%.1f), hit ratio music=%.2f user=%.2f, "
+                        + "queue=%d, running=%d, utilisation=%.2f, service time=%.1f ms, scans=%d (%.2f ms), "
+                        + "rejected=%d, expired=%d, failed=%d",
+                address, totalRequests(), requests[0], requests[1], requests[2], requests[3], requests[4],
+                totalRequestRate(), requestRates[0], requestRates[1], requestRates[2], requestRates[3],
+                musicCacheHitRatio, userCacheHitRatio, queueDepth, runningJobs, workerUtilisation,
+                serviceTimeMillis, scans, scanTimeMillis, rejectedJobs, expiredJobs, failedJobs);
+    }
+}
@@ -0,0 +1,39 @@
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Prints the metrics of every running server, over and over.
+ *
+ * Use
+ * > java StatsMonitor [ms between prints]
+ * which defaults to 1000 ms. The servers are found in the registry by
+ * the names of their Balance objects, so servers that join later show
+ * up too. The same metrics can be read with jconsole, from the
+ * MusicStats:type=Server MBeans of the ServerSimulator process.
+ */
+public class StatsMonitor {
+
+    public static void main(String[] args) throws RemoteException, InterruptedException {
+        long interval = args.length > 0 ? Long.parseLong(args[0]) : 1000;
+        Registry registry = LocateRegistry.getRegistry();
+        while (true) {
+            System.out.println("-----------");
+            for (String name : registry.list()) {
+                if (!name.matches("b\\d+")) {
+                    continue;
+                }
+                try {
+                    BalancerIf balancer = (BalancerIf) registry.lookup(name);
+                    System.out.println(balancer.getStats());
+                } catch (RemoteException | NotBoundException e) {
+                    // the server went away since the list was taken
+                    System.out.println(name + ": not reachable");
+                }
+            }
+            TimeUnit.MILLISECONDS.sleep(interval);
+        }
+    }
+}
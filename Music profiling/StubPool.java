@@ -0,0 +1,59 @@
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Client side cache of server stubs, keyed by ConnectInfo.address.
+ *
+ * A stub is looked up in the registry the first time its server is
+ * used and kept after that. If a call on a cached stub fails with a
+ * RemoteException, e.g. because the server was restarted, the stub is
+ * dropped, looked up again and the call is retried once.
+ */
+class StubPool {
+    interface RemoteCall<T> {
+        T call(MusicStats stub) throws RemoteException, InterruptedException;
+    }
+
+    private final Registry registry;
+    private final ConcurrentHashMap<String, MusicStats> stubs = new ConcurrentHashMap<>();
+
+    StubPool() throws RemoteException {
+        this.registry = LocateRegistry.getRegistry();
+    }
+
+    /**
+     * @return the stub for address, looking it up if it is not cached
+     */
+    MusicStats get(String address) throws RemoteException, NotBoundException {
+        MusicStats stub = stubs.get(address);
+        if (stub == null) {
+            stub = (MusicStats) registry.lookup(address);
+            stubs.put(address, stub);
+        }
+        return stub;
+    }
+
+    /**
+     * Drops the stub for address, unless it was already replaced by a newer one
+     */
+    void invalidate(String address, MusicStats stub) {
+        stubs.remove(address, stub);
+    }
+
+    /**
+     * Makes call on the stub for address, retrying once with a fresh stub
+     * if the cached one fails
+     */
+    <T> T call(String address, RemoteCall<T> call) throws RemoteException, NotBoundException, InterruptedException {
+        MusicStats stub = get(address);
+        try {
+            return call.call(stub);
+        } catch (RemoteException e) {
+            invalidate(address, stub);
+            return call.call(get(address));
+        }
+    }
+}
@@ -0,0 +1,58 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Wraps the QueryEngine of a server to time its scans for ServerMetrics.
+ *
+ * Only cache misses reach the engine, so this is the time the server
+ * spends on the data itself. A batch counts as one scan.
+ */
+class TimedQueryEngine implements QueryEngine {
+    private final QueryEngine engine;
+    private final ServerMetrics metrics;
+
+    TimedQueryEngine(QueryEngine engine, ServerMetrics metrics) {
+        this.engine = engine;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public int getTimesPlayed(String musicID) {
+        long start = System.nanoTime();
+        int answer = engine.getTimesPlayed(musicID);
+        metrics.recordScan(System.nanoTime() - start);
+        return answer;
+    }
+
+    @Override
+    public int getTimesPlayedByUser(String musicID, String userID) {
+        long start = System.nanoTime();
+        int answer = engine.getTimesPlayedByUser(musicID, userID);
+        metrics.recordScan(System.nanoTime() - start);
+        return answer;
+    }
+
+    @Override
+    public ArrayList<String> getTopMusicByUser(String userID, int k) {
+        long start = System.nanoTime();
+        ArrayList<String> answer = engine.getTopMusicByUser(userID, k);
+        metrics.recordScan(System.nanoTime() - start);
+        return answer;
+    }
+
+    @Override
+    public ArrayList<String> getTopArtistsByUserGenre(String userID, String genre, int k) {
+        long start = System.nanoTime();
+        ArrayList<String> answer = engine.getTopArtistsByUserGenre(userID, genre, k);
+        metrics.recordScan(System.nanoTime() - start);
+        return answer;
+    }
+
+    @Override
+    public Object[] answerAll(List<Query> queries) {
+        long start = System.nanoTime();
+        Object[] answers = engine.answerAll(queries);
+        metrics.recordScan(System.nanoTime() - start);
+        return answers;
+    }
+}
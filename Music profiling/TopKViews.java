@@ -0,0 +1,174 @@
+import java.util.Arrays;
+
+/**
+ * Materialized top-K lists, built once from a Dataset.
+ *
+ * For every user the K most played songs, and for every (user, genre)
+ * pair the K most played artists, are stored as dictionary ids, most
+ * played first. Both top lists are then answered without looking at the
+ * rows.
+ *
+ * The rows are put in (user, genre) order by two counting sorts, so the
+ * rows of a user, and within them the rows of each genre, are next to
+ * each other and every row is read once. The lists are kept in flat int
+ * arrays in that order, with an offset array marking where each starts.
+ */
+class TopKViews {
+    final int k;
+    // the top songs of user u are topMusic[musicStart[u]] to topMusic[musicStart[u + 1]] exclusive
+    private final int[] musicStart;
+    private final int[] topMusic;
+    // the (user, genre) groups of user u are groupStart[u] to groupStart[u + 1] exclusive,
+    // ordered by genre id
+    private final int[] groupStart;
+    private final int[] groupGenre;
+    // the top artists of group i are topArtists[artistStart[i]] to topArtists[artistStart[i + 1]] exclusive
+    private final int[] artistStart;
+    private final int[] topArtists;
+
+    TopKViews(Dataset dataset, int k) {
+        this.k = k;
+        int users = dataset.userIds.size();
+        int genres = dataset.genres.size();
+        int[] byGenre = countingSort(dataset.genre, identity(dataset.rows), genres);
+        // stable, so the rows of a user stay in genre order
+        int[] rowsByUser = countingSort(dataset.user, byGenre, users);
+
+        int[] userStart = new int[users + 1];
+        for (int r = 0; r < dataset.rows; r++) {
+            userStart[dataset.user[r] + 1]++;
+        }
+        for (int u = 0; u < users; u++) {
+            userStart[u + 1] += userStart[u];
+        }
+
+        int groups = 0;
+        for (int i = 0; i < dataset.rows; i++) {
+            if (i == 0 || dataset.user[rowsByUser[i]] != dataset.user[rowsByUser[i - 1]]
+                    || dataset.genre[rowsByUser[i]] != dataset.genre[rowsByUser[i - 1]]) {
+                groups++;
+            }
+        }
+
+        musicStart = new int[users + 1];
+        int[] music = new int[users * k];
+        groupStart = new int[users + 1];
+        groupGenre = new int[groups];
+        artistStart = new int[groups + 1];
+        int[] artists = new int[groups * k];
+
+        // scratch space, reused for every user and group. An entry in count[]
+        // is only valid while stamp[] holds the current round
+        Scratch musicCounts = new Scratch(dataset.musicIds.size(), k);
+        Scratch artistCounts = new Scratch(dataset.artistIds.size(), k);
+        int group = 0;
+        for (int u = 0; u < users; u++) {
+            groupStart[u] = group;
+            musicCounts.round++;
+            for (int i = userStart[u]; i < userStart[u + 1]; ) {
+                int g = dataset.genre[rowsByUser[i]];
+                artistCounts.round++;
+                for (; i < userStart[u + 1] && dataset.genre[rowsByUser[i]] == g; i++) {
+                    int r = rowsByUser[i];
+                    musicCounts.add(dataset.music[r], dataset.plays[r]);
+                    for (int a = dataset.artistStart[r]; a < dataset.artistStart[r + 1]; a++) {
+                        artistCounts.add(dataset.artists[a], dataset.plays[r]);
+                    }
+                }
+                groupGenre[group] = g;
+                artistStart[group + 1] = artistCounts.top(artists, artistStart[group]);
+                group++;
+            }
+            musicStart[u + 1] = musicCounts.top(music, musicStart[u]);
+        }
+        groupStart[users] = group;
+        topMusic = Arrays.copyOf(music, musicStart[users]);
+        topArtists = Arrays.copyOf(artists, artistStart[groups]);
+    }
+
+    private static int[] identity(int n) {
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        return order;
+    }
+
+    /**
+     * @param keys a column of dictionary ids below size
+     * @param order row numbers
+     * @return order, stably sorted by the key of each row
+     */
+    private static int[] countingSort(int[] keys, int[] order, int size) {
+        int[] next = new int[size + 1];
+        for (int r : order) {
+            next[keys[r] + 1]++;
+        }
+        for (int key = 0; key < size; key++) {
+            next[key + 1] += next[key];
+        }
+        int[] sorted = new int[order.length];
+        for (int r : order) {
+            sorted[next[keys[r]]++] = r;
+        }
+        return sorted;
+    }
+
+    /**
+     * Per id play counters that can be reset in O(1) by starting a new round
+     */
+    private static class Scratch {
+        final int[] count, stamp, touched, ids, values;
+        int round, n;
+
+        Scratch(int size, int k) {
+            count = new int[size];
+            stamp = new int[size];
+            touched = new int[size];
+            ids = new int[k];
+            values = new int[k];
+        }
+
+        void add(int id, int plays) {
+            if (stamp[id] != round) {
+                stamp[id] = round;
+                count[id] = 0;
+                touched[n++] = id;
+            }
+            count[id] += plays;
+        }
+
+        /**
+         * Copies the k ids with the highest counts this round to out from offset on,
+         * and clears the round
+         * @return the offset after the last id copied
+         */
+        int top(int[] out, int offset) {
+            int size = 0;
+            for (int i = 0; i < n; i++) {
+                size = Dataset.offer(ids, values, size, touched[i], count[touched[i]]);
+            }
+            n = 0;
+            System.arraycopy(ids, 0, out, offset, size);
+            return offset + size;
+        }
+    }
+
+    /**
+     * @param userId dictionary id of a user
+     * @return ids of the user's most played songs, most played first
+     */
+    int[] getTopMusic(int userId) {
+        return Arrays.copyOfRange(topMusic, musicStart[userId], musicStart[userId + 1]);
+    }
+
+    /**
+     * @param userId dictionary id of a user
+     * @param genreId dictionary id of a genre
+     * @return ids of the user's most played artists in the genre, most played first
+     */
+    int[] getTopArtists(int userId, int genreId) {
+        int i = Arrays.binarySearch(groupGenre, groupStart[userId], groupStart[userId + 1], genreId);
+        return i < 0 ? new int[0] : Arrays.copyOfRange(topArtists, artistStart[i], artistStart[i + 1]);
+    }
+}
@@ -1,19 +1,23 @@
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Profiles are shared through the server caches, so several jobs may
+ * update the same profile at once.
+ */
 public class UserProfile {
 
     private String userId;
-    private ArrayList<String> topThreeMusicProfiles;
-    private HashMap<String, ArrayList<String>> topArtistByGenre;
-    private HashMap<String, MusicProfile> musicProfiles;
+    private volatile ArrayList<String> topThreeMusicProfiles;
+    private ConcurrentHashMap<String, ArrayList<String>> topArtistByGenre;
+    private ConcurrentHashMap<String, MusicProfile> musicProfiles;
 
 
     public UserProfile(String userId, ArrayList<String> topThreeMusicProfiles) {
         this.userId = userId;
         this.topThreeMusicProfiles = topThreeMusicProfiles;
-        this.topArtistByGenre = new HashMap<>();
-        this.musicProfiles = new HashMap<>();
+        this.topArtistByGenre = new ConcurrentHashMap<>();
+        this.musicProfiles = new ConcurrentHashMap<>();
     }
 
     public String getUserId() {
@@ -29,7 +33,7 @@ public class UserProfile {
     }
 
     public ArrayList<String> getTopArtistsByGenre(String genre) {
-        return topArtistByGenre.getOrDefault(genre, null);
+        return topArtistByGenre.get(genre);
     }
 
     public void setTopArtistByGenre(String genre, ArrayList<String> topArtistByGenre) {
@@ -44,4 +48,29 @@ public class UserProfile {
         return musicProfiles.get(musicId);
     }
 
+    /**
+     * @return a rough estimate of the heap size of this profile in bytes,
+     * used when the server caches are bounded in bytes
+     */
+    public int estimatedSize() {
+        int size = 48 + MusicProfile.estimatedSize(userId) + estimatedSize(topThreeMusicProfiles);
+        for (ArrayList<String> artists : topArtistByGenre.values()) {
+            size += 48 + estimatedSize(artists);
+        }
+        for (MusicProfile profile : musicProfiles.values()) {
+            size += 32 + profile.estimatedSize();
+        }
+        return size;
+    }
+
+    private static int estimatedSize(ArrayList<String> ids) {
+        int size = 0;
+        if (ids != null) {
+            for (String id : ids) {
+                size += 8 + MusicProfile.estimatedSize(id);
+            }
+        }
+        return size;
+    }
+
 }
@@ -0,0 +1,152 @@
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.ArrayList;
+
+/**
+ * Compact encodings for the Externalizable classes sent over RMI.
+ *
+ * Numbers are written as varints, 7 bits per byte with the high bit set
+ * on every byte but the last, so the small counts and times that make
+ * up most of a Payload take one to four bytes instead of eight.
+ *
+ * Ids from the dataset are ten characters from [0-9A-Za-z], which fit in
+ * 60 bits, so they are packed into a long instead of written as strings.
+ * Anything else is written as a string.
+ */
+final class WireFormat {
+    private static final int ID_LENGTH = 10;
+    private static final byte NULL = 0, PACKED_ID = 1, STRING = 2;
+
+    private WireFormat() {}
+
+    /**
+     * @param value must not be negative
+     */
+    static void writeVarLong(ObjectOutput out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    static long readVarLong(ObjectInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    /**
+     * Zigzag encodes value first, so small negative numbers stay short too
+     */
+    static void writeVarInt(ObjectOutput out, int value) throws IOException {
+        writeVarLong(out, ((value << 1) ^ (value >> 31)) & 0xFFFFFFFFL);
+    }
+
+    static int readVarInt(ObjectInput in) throws IOException {
+        int zigzag = (int) readVarLong(in);
+        return (zigzag >>> 1) ^ -(zigzag & 1);
+    }
+
+    static void writeId(ObjectOutput out, String id) throws IOException {
+        if (id == null) {
+            out.writeByte(NULL);
+            return;
+        }
+        long packed = pack(id);
+        if (packed < 0) {
+            out.writeByte(STRING);
+            out.writeUTF(id);
+        } else {
+            out.writeByte(PACKED_ID);
+            out.writeLong(packed);
+        }
+    }
+
+    static String readId(ObjectInput in) throws IOException {
+        byte tag = in.readByte();
+        switch (tag) {
+            case NULL :
+                return null;
+            case PACKED_ID :
+                return unpack(in.readLong());
+            case STRING :
+                return in.readUTF();
+            default :
+                throw new IOException("Unknown id tag " + tag);
+        }
+    }
+
+    static void writeIds(ObjectOutput out, ArrayList<String> ids) throws IOException {
+        writeVarLong(out, ids.size());
+        for (String id : ids) {
+            writeId(out, id);
+        }
+    }
+
+    static ArrayList<String> readIds(ObjectInput in) throws IOException {
+        int size = (int) readVarLong(in);
+        ArrayList<String> ids = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            ids.add(readId(in));
+        }
+        return ids;
+    }
+
+    /**
+     * @return the id packed 6 bits per character, or -1 if it is not a dataset id
+     */
+    static long pack(String id) {
+        if (id.length() != ID_LENGTH) {
+            return -1;
+        }
+        long packed = 0;
+        for (int i = 0; i < ID_LENGTH; i++) {
+            int digit = digit(id.charAt(i));
+            if (digit < 0) {
+                return -1;
+            }
+            packed = packed << 6 | digit;
+        }
+        return packed;
+    }
+
+    static String unpack(long packed) {
+        char[] id = new char[ID_LENGTH];
+        for (int i = ID_LENGTH - 1; i >= 0; i--) {
+            id[i] = character((int) (packed & 0x3F));
+            packed >>>= 6;
+        }
+        return new String(id);
+    }
+
+    private static int digit(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (c >= 'A' && c <= 'Z') {
+            return c - 'A' + 10;
+        }
+        if (c >= 'a' && c <= 'z') {
+            return c - 'a' + 36;
+        }
+        return -1;
+    }
+
+    private static char character(int digit) {
+        if (digit < 10) {
+            return (char) ('0' + digit);
+        }
+        if (digit < 36) {
+            return (char) ('A' + digit - 10);
+        }
+        return (char) ('a' + digit - 36);
+    }
+}
@@ -15,6 +15,9 @@ n=$1
 smode=$2
 cmode=$3
 
+# every client saves its latencies as latency_<output file>.hist
+rm -f latency_*.hist
+
 if [ $smode -eq 1 ]
 then
     if [ $cmode -eq 1 ]
@@ -43,3 +46,7 @@ else
         done
     fi
 fi
+
+# merge the latencies of all clients into one report
+wait
+java LatencyReport latency_*.hist